@@ -24,7 +24,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.os.RemoteException;
 import android.util.Log;
 import com.android.vending.billing.IMarketBillingService;
@@ -33,6 +36,12 @@ import com.soomla.store.StoreUtils;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -64,6 +73,38 @@ public class BillingService extends Service implements ServiceConnection {
     private static HashMap<Long, BillingRequest> mSentRequests =
         new HashMap<Long, BillingRequest>();
 
+    /**
+     * Purchase state changes are handled off the main thread in two stages.
+     * The signatures are verified on a pool of workers. The verified purchases
+     * are applied by a single thread, in the order the changes arrived.
+     */
+    private static final int VERIFY_THREADS = 2;
+    private static final ExecutorService sVerifyExecutor = Executors.newFixedThreadPool(VERIFY_THREADS,
+            new BackgroundThreadFactory("SOOMLA purchase verifier"));
+    private static final ExecutorService sApplyExecutor = Executors.newSingleThreadExecutor(
+            new BackgroundThreadFactory("SOOMLA purchase applier"));
+
+    private final Handler mMainThread = new Handler(Looper.getMainLooper());
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        BackgroundThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mName);
+        }
+    }
+
     /**
      * The base class for all requests that use the MarketBillingService.
      * Each derived class overrides the run() method to call the appropriate
@@ -527,33 +568,65 @@ public class BillingService extends Service implements ServiceConnection {
     }
 
     /**
-     * Verifies that the data was signed with the given signature, and calls
-     * {@link ResponseHandler#purchaseResponse(Context, Consts.PurchaseState, String, String, long, String)}
-     * for each verified purchase.
+     * Verifies that the data was signed with the given signature on a
+     * background worker, then calls
+     * {@link ResponseHandler#purchasesResponse(Context, java.util.List)} with all
+     * the verified purchases at once on the thread that applies purchases.
+     * The notifications are confirmed (on the main thread) after that.
      * @param startId an identifier for the invocation instance of this service
      * @param signedData the signed JSON string (signed, not encrypted)
      * @param signature the signature for the data, signed with the private key
      */
-    private void purchaseStateChanged(int startId, String signedData, String signature) {
-        ArrayList<Security.VerifiedPurchase> purchases;
-        purchases = Security.verifyPurchase(signedData, signature);
-        if (purchases == null) {
-            // TODO: consider posting an error to ResponseHandler from here ...
-            return;
-        }
-
-        ArrayList<String> notifyList = new ArrayList<String>();
-        for (Security.VerifiedPurchase vp : purchases) {
-            if (vp.notificationId != null) {
-                notifyList.add(vp.notificationId);
+    private void purchaseStateChanged(final int startId, final String signedData, final String signature) {
+        final Future<ArrayList<Security.VerifiedPurchase>> verification = sVerifyExecutor.submit(
+                new Callable<ArrayList<Security.VerifiedPurchase>>() {
+                    @Override
+                    public ArrayList<Security.VerifiedPurchase> call() {
+                        return Security.verifyPurchase(signedData, signature);
+                    }
+                });
+
+        sApplyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Security.VerifiedPurchase> purchases;
+                try {
+                    purchases = verification.get();
+                } catch (InterruptedException e) {
+                    StoreUtils.LogError(TAG, "Interrupted while verifying a purchase state change.");
+                    return;
+                } catch (ExecutionException e) {
+                    StoreUtils.LogError(TAG, "Couldn't verify a purchase state change: " + e.getCause());
+                    return;
+                }
+                if (purchases == null) {
+                    // TODO: consider posting an error to ResponseHandler from here ...
+                    return;
+                }
+
+                if (!ResponseHandler.purchasesResponse(BillingService.this, purchases)) {
+                    // not confirming them makes Android Market send them again later.
+                    StoreUtils.LogError(TAG, "The purchase state changes weren't applied. Not confirming them.");
+                    return;
+                }
+
+                ArrayList<String> notifyList = new ArrayList<String>();
+                for (Security.VerifiedPurchase vp : purchases) {
+                    if (vp.notificationId != null) {
+                        notifyList.add(vp.notificationId);
+                    }
+                }
+                if (!notifyList.isEmpty()) {
+                    final String[] notifyIds = notifyList.toArray(new String[notifyList.size()]);
+                    mMainThread.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            confirmNotifications(startId, notifyIds);
+                        }
+                    });
+                }
             }
-            ResponseHandler.purchaseResponse(this, vp.purchaseState, vp.productId,
-                    vp.orderId, vp.purchaseTime, vp.developerPayload);
-        }
-        if (!notifyList.isEmpty()) {
-            String[] notifyIds = notifyList.toArray(new String[notifyList.size()]);
-            confirmNotifications(startId, notifyIds);
-        }
+        });
     }
 
     /**
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.billing;
+
+import android.os.SystemClock;
+
+/**
+ * A thread-safe set of the nonces that are waiting for an answer from the market.
+ * Nonces are kept as primitive longs in an open-addressing hash table. A nonce that isn't answered within the
+ * given time is dropped, and when the registry is full the oldest nonce makes room for the new one, so nonces of
+ * purchases that were cancelled or failed don't pile up.
+ * 0 can't be registered (it's what verification gets when a response has no nonce).
+ */
+class NonceRegistry {
+
+    /**
+     * @param capacity the maximum number of nonces kept.
+     * @param ttlMs the time (in milliseconds) a nonce is kept.
+     */
+    NonceRegistry(int capacity, long ttlMs) {
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mNonces = new long[tableSize];
+        mRegistrations = new long[tableSize];
+        mOrderNonces = new long[capacity];
+        mOrderRegistrations = new long[capacity];
+        mOrderAddedAt = new long[capacity];
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * @return false if the nonce is 0 or already registered.
+     */
+    synchronized boolean add(long nonce) {
+        if (nonce == 0) {
+            return false;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+
+        int slot = find(nonce);
+        if (mNonces[slot] == nonce) {
+            return false;
+        }
+
+        if (mOrderCount == mOrderNonces.length) {
+            compactOrder();
+            if (mOrderCount == mOrderNonces.length) {
+                evictOldest();
+            }
+            slot = find(nonce);
+        }
+
+        long registration = ++mLastRegistration;
+        mNonces[slot] = nonce;
+        mRegistrations[slot] = registration;
+        mSize++;
+
+        int tail = (mOrderHead + mOrderCount) % mOrderNonces.length;
+        mOrderNonces[tail] = nonce;
+        mOrderRegistrations[tail] = registration;
+        mOrderAddedAt[tail] = now;
+        mOrderCount++;
+        return true;
+    }
+
+    /**
+     * @return false if the nonce wasn't registered (or already expired).
+     */
+    synchronized boolean remove(long nonce) {
+        if (nonce == 0) {
+            return false;
+        }
+
+        int slot = find(nonce);
+        if (mNonces[slot] != nonce) {
+            return false;
+        }
+
+        // the nonce stays in the insertion order until it gets to its head or the order is compacted.
+        deleteSlot(slot);
+        return true;
+    }
+
+    synchronized boolean contains(long nonce) {
+        if (nonce == 0) {
+            return false;
+        }
+
+        expire(SystemClock.elapsedRealtime());
+        return mNonces[find(nonce)] == nonce;
+    }
+
+    synchronized int size() {
+        expire(SystemClock.elapsedRealtime());
+        return mSize;
+    }
+
+    /** Private functions **/
+
+    /**
+     * @return the slot of the nonce or the empty slot where it would go.
+     */
+    private int find(long nonce) {
+        int mask = mNonces.length - 1;
+        int slot = hash(nonce) & mask;
+        while (mNonces[slot] != 0 && mNonces[slot] != nonce) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties the slot and moves back the nonces that follow it so no lookup stops at the hole.
+     */
+    private void deleteSlot(int slot) {
+        int mask = mNonces.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (mNonces[next] == 0) {
+                break;
+            }
+
+            int home = hash(mNonces[next]) & mask;
+            boolean staysPut = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!staysPut) {
+                mNonces[hole] = mNonces[next];
+                mRegistrations[hole] = mRegistrations[next];
+                hole = next;
+            }
+        }
+
+        mNonces[hole] = 0;
+        mSize--;
+    }
+
+    private void expire(long now) {
+        while (mOrderCount > 0 && now - mOrderAddedAt[mOrderHead] >= mTtlMs) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Drops the head of the insertion order. Nonces that were removed (or removed and added again) are still in
+     * the order, so the nonce is only dropped if it's still the same registration.
+     */
+    private void evictOldest() {
+        int head = mOrderHead;
+        mOrderHead = (mOrderHead + 1) % mOrderNonces.length;
+        mOrderCount--;
+
+        int slot = find(mOrderNonces[head]);
+        if (isRegistered(slot, head)) {
+            deleteSlot(slot);
+        }
+    }
+
+    /**
+     * Drops the nonces that were already removed from the insertion order.
+     */
+    private void compactOrder() {
+        int capacity = mOrderNonces.length;
+        int kept = 0;
+        for (int i = 0; i < mOrderCount; i++) {
+            int from = (mOrderHead + i) % capacity;
+            if (isRegistered(find(mOrderNonces[from]), from)) {
+                int to = (mOrderHead + kept) % capacity;
+                mOrderNonces[to] = mOrderNonces[from];
+                mOrderRegistrations[to] = mOrderRegistrations[from];
+                mOrderAddedAt[to] = mOrderAddedAt[from];
+                kept++;
+            }
+        }
+        mOrderCount = kept;
+    }
+
+    /**
+     * @return true if the given slot of the hash table holds the registration at the given index of the order.
+     */
+    private boolean isRegistered(int slot, int orderIndex) {
+        return mNonces[slot] == mOrderNonces[orderIndex] && mRegistrations[slot] == mOrderRegistrations[orderIndex];
+    }
+
+    private static int hash(long nonce) {
+        long h = nonce * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+
+    /** Private Members **/
+
+    private final long mTtlMs;
+
+    // the hash table. 0 marks an empty slot. every add gets a new registration number so a nonce that was
+    // removed and added again isn't mistaken for its old registration.
+    private final long[] mNonces;
+    private final long[] mRegistrations;
+    private int mSize = 0;
+    private long mLastRegistration = 0;
+
+    // the nonces in the order they were added (a ring buffer), for expiry and eviction.
+    private final long[] mOrderNonces;
+    private final long[] mOrderRegistrations;
+    private final long[] mOrderAddedAt;
+    private int mOrderHead = 0;
+    private int mOrderCount = 0;
+}
@@ -31,6 +31,7 @@ import com.soomla.billing.Consts.ResponseCode;
 import com.soomla.store.StoreUtils;
 
 import java.lang.reflect.Method;
+import java.util.List;
 
 /**
  * An interface for observing changes related to purchases. {@link com.soomla.store.StoreController}
@@ -65,6 +66,23 @@ public abstract class PurchaseObserver {
     public abstract void onPurchaseStateChange(PurchaseState purchaseState,
             String productId, long purchaseTime, String developerPayload);
 
+    /**
+     * This is the callback that is invoked with all the purchase state changes
+     * of one notification from Android Market (a restore may carry many of them).
+     * It runs on a background thread. The default implementation hands every
+     * change to {@link #onPurchaseStateChange(Consts.PurchaseState, String, long, String)}
+     * on the UI thread.
+     * @param purchases the verified purchases, in the order Android Market sent them
+     * @return true if the purchases were applied. The notifications are only confirmed to Android Market
+     *     (which then stops sending them) if they were.
+     */
+    public boolean onPurchaseStateChanges(List<Security.VerifiedPurchase> purchases) {
+        for (Security.VerifiedPurchase vp : purchases) {
+            postPurchaseStateChange(vp.purchaseState, vp.productId, vp.purchaseTime, vp.developerPayload);
+        }
+        return true;
+    }
+
     /**
      * This is called when we receive a response code from Market for a
      * RequestPurchase request that we made.  This is NOT used for any
@@ -27,6 +27,8 @@ import com.soomla.billing.Consts.PurchaseState;
 import com.soomla.billing.Consts.ResponseCode;
 import com.soomla.store.StoreUtils;
 
+import java.util.List;
+
 /**
  * This class contains the methods that handle responses from Android Market.
  * This class updates the UI through the registered PurchaseObserver.
@@ -121,6 +123,27 @@ public class ResponseHandler {
         }
     }
 
+    /**
+     * Notifies the application of all the purchase state changes of one
+     * notification at once. The BillingService calls this on the thread that
+     * applies verified purchases (not the UI thread).
+     * @param context the context
+     * @param purchases the verified purchases, in the order Android Market sent them
+     * @return true if the application applied the purchases (only then may they be confirmed to Android Market).
+     */
+    public static boolean purchasesResponse(Context context, List<Security.VerifiedPurchase> purchases) {
+        PurchaseObserver observer;
+
+        // The UI thread can change the value of sPurchaseObserver.
+        synchronized(ResponseHandler.class) {
+            observer = sPurchaseObserver;
+        }
+        if (observer == null) {
+            return false;
+        }
+        return observer.onPurchaseStateChanges(purchases);
+    }
+
     /**
      * This is called when we receive a response code from Android Market for a
      * RequestPurchase request that we made.  This is used for reporting various
@@ -40,7 +40,6 @@ import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
-import java.util.HashSet;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -59,6 +58,18 @@ public class Security {
 
     private static AESObfuscator mAesObfuscator = null;
 
+    /**
+     * The last public key that was parsed together with the encoded string it came from. It's
+     * replaced as a whole so readers always see a matching pair.
+     */
+    private static volatile CachedPublicKey mPublicKey = null;
+
+    /**
+     * A Signature isn't thread-safe so every thread keeps its own instance and re-initializes it
+     * for each verification.
+     */
+    private static final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>();
+
     /**
      * This keeps track of the nonces that we generated and sent to the
      * server.  We need to keep track of these until we get back the purchase
@@ -67,8 +78,12 @@ public class Security {
      * send us a new "notify" message and we will re-generate a new nonce.
      * This has to be "static" so that the {@link BillingReceiver} can
      * check if a nonce exists.
+     * Nonces that aren't answered within NONCE_TTL_MS are dropped and at most
+     * MAX_KNOWN_NONCES are kept (the oldest make room for new ones).
      */
-    private static HashSet<Long> sKnownNonces = new HashSet<Long>();
+    private static final int MAX_KNOWN_NONCES = 256;
+    private static final long NONCE_TTL_MS = 60 * 60 * 1000;
+    private static final NonceRegistry sKnownNonces = new NonceRegistry(MAX_KNOWN_NONCES, NONCE_TTL_MS);
 
     /**
      * A class to hold the verified purchase information.
@@ -94,8 +109,10 @@ public class Security {
 
     /** Generates a nonce (a random number used once). */
     public static long generateNonce() {
-        long nonce = RANDOM.nextLong();
-        sKnownNonces.add(nonce);
+        long nonce;
+        do {
+            nonce = RANDOM.nextLong();
+        } while (!sKnownNonces.add(nonce));
         return nonce;
     }
 
@@ -142,7 +159,7 @@ public class Security {
                 Log.w(TAG, "Empty publicKey. Stopping verification.");
                 return null;
             }
-            PublicKey key = Security.generatePublicKey(publicKey);
+            PublicKey key = Security.getPublicKey(publicKey);
             verified = Security.verify(key, signedData, signature);
             if (!verified) {
                 Log.w(TAG, "signature does not match data.");
@@ -227,6 +244,32 @@ public class Security {
         }
     }
 
+    /**
+     * Returns the PublicKey for the given Base64-encoded public key. The key is only parsed again
+     * when the encoded key differs from the one that was parsed last.
+     *
+     * @param encodedPublicKey Base64-encoded public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    private static PublicKey getPublicKey(String encodedPublicKey) {
+        CachedPublicKey cached = mPublicKey;
+        if (cached == null || !cached.encoded.equals(encodedPublicKey)) {
+            cached = new CachedPublicKey(encodedPublicKey, generatePublicKey(encodedPublicKey));
+            mPublicKey = cached;
+        }
+        return cached.key;
+    }
+
+    private static class CachedPublicKey {
+        final String encoded;
+        final PublicKey key;
+
+        CachedPublicKey(String encoded, PublicKey key) {
+            this.encoded = encoded;
+            this.key = key;
+        }
+    }
+
     /**
      * Verifies that the signature from the server matches the computed
      * signature on the data.  Returns true if the data is correctly signed.
@@ -240,7 +283,11 @@ public class Security {
         StoreUtils.LogDebug(TAG, "signature: " + signature);
         Signature sig;
         try {
-            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            sig = mSignature.get();
+            if (sig == null) {
+                sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+                mSignature.set(sig);
+            }
             sig.initVerify(publicKey);
             sig.update(signedData.getBytes());
             if (!sig.verify(Base64.decode(signature))) {
@@ -254,6 +301,8 @@ public class Security {
             StoreUtils.LogError(TAG, "Invalid key specification.");
         } catch (SignatureException e) {
             StoreUtils.LogError(TAG, "Signature exception.");
+            // don't reuse an instance that failed halfway.
+            mSignature.remove();
         } catch (Base64DecoderException e) {
             StoreUtils.LogError(TAG, "Base64 decoding failed.");
         }
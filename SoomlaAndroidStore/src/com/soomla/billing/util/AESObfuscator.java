@@ -33,6 +33,9 @@ import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * An Obfuscator that uses AES to encrypt data.
@@ -44,9 +47,64 @@ public class AESObfuscator {
     private static final byte[] IV =
             { 16, 74, 71, -80, 32, 101, -47, 72, 117, -14, 0, -29, 70, 65, -12, 74 };
     private static final String header = "com.soomla.billing.util.AESObfuscator-1|";
+    // binary values: magic + format version, followed by one of the TYPE_ bytes.
+    private static final byte[] BINARY_HEADER = { 'S', 'M', 'L', 1 };
+    private static final byte TYPE_INT = 1;
+    private static final byte TYPE_STRING = 2;
+    private static final byte TYPE_BYTES = 3;
+    private static final byte[] BINARY_INT_PREFIX = { 'S', 'M', 'L', 1, TYPE_INT };
+    private static final byte[] BINARY_STRING_PREFIX = { 'S', 'M', 'L', 1, TYPE_STRING };
+    private static final byte[] BINARY_BYTES_PREFIX = { 'S', 'M', 'L', 1, TYPE_BYTES };
+    // the header is ASCII so its UTF-8 bytes are its chars.
+    private static final byte[] HEADER_BYTES = asciiBytes(header);
+    private static final int MAX_SCRATCH_SIZE = 4096;
 
-    private Cipher mEncryptor;
-    private Cipher mDecryptor;
+    /**
+     * The size of an int obfuscated with {@link #obfuscateToBytes(int)}: a single AES block.
+     */
+    public static final int OBFUSCATED_INT_SIZE = 16;
+    // the key cache holds at least this many keys (see ensureKeyCacheCapacity()).
+    private static final int KEY_CACHE_SIZE = 1024;
+
+    private final SecretKey mSecret;
+
+    // what the ciphers write into (and read from) so (un)obfuscating doesn't allocate intermediate arrays.
+    private static final ThreadLocal<byte[]> mScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    // a Cipher isn't thread-safe so instead of sharing one pair under a lock every thread builds its own
+    // pair (from the key derived once in the constructor) and reuses it. doFinal resets it for the next call.
+    private final ThreadLocal<Cipher> mEncryptor = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.ENCRYPT_MODE);
+        }
+    };
+    private final ThreadLocal<Cipher> mDecryptor = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.DECRYPT_MODE);
+        }
+    };
+
+    /**
+     * The IV is fixed so the obfuscation of a given string never changes. Storage keys are obfuscated
+     * over and over again so we keep the most recently used ones here (LRU, bounded by mKeyCacheSize).
+     */
+    private final LinkedHashMap<String, String> mKeyCache =
+            new LinkedHashMap<String, String>(KEY_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > mKeyCacheSize;
+                }
+            };
+
+    // guarded by mKeyCache.
+    private int mKeyCacheSize = KEY_CACHE_SIZE;
 
     /**
      * @param salt an array of random bytes to use for each (un)obfuscation
@@ -80,12 +138,25 @@ public class AESObfuscator {
             }
         }
 
-        SecretKey secret = new SecretKeySpec(passwordData, "AES");
+        mSecret = new SecretKeySpec(passwordData, "AES");
+        // fail here (and not on the first obfuscation) if the environment can't do it.
+        mEncryptor.get();
+        mDecryptor.get();
+    }
+
+    private static byte[] asciiBytes(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private Cipher createCipher(int mode) {
         try {
-            mEncryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mEncryptor.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(IV));
-            mDecryptor = Cipher.getInstance(CIPHER_ALGORITHM);
-            mDecryptor.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(IV));
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(mode, mSecret, new IvParameterSpec(IV));
+            return cipher;
         } catch (GeneralSecurityException e) {
             // This can't happen on a compatible Android device.
             throw new RuntimeException("Invalid environment 2", e);
@@ -96,16 +167,59 @@ public class AESObfuscator {
         return obfuscateString("" + original);
     }
 
-    public synchronized String obfuscateString(String original) {
+    /**
+     * Obfuscates a storage key. The result is exactly the same as {@link #obfuscateString(String)} but
+     * it's memoized so repeated calls for the same key cost a hash lookup instead of a cipher round trip.
+     * @param key the plain storage key.
+     * @return the obfuscated key.
+     */
+    public String obfuscateKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        String obfuscated;
+        synchronized (mKeyCache) {
+            obfuscated = mKeyCache.get(key);
+        }
+        if (obfuscated == null) {
+            // the cipher work is done outside the lock. two threads may both miss and obfuscate the same key,
+            // they get the same result.
+            obfuscated = obfuscateString(key);
+            synchronized (mKeyCache) {
+                mKeyCache.put(key, obfuscated);
+            }
+        }
+        return obfuscated;
+    }
+
+    /**
+     * Makes room in the key cache for the given number of keys on top of KEY_CACHE_SIZE, so a catalog's keys
+     * (see StoreInfo) stay cached however large the catalog is. The cache never shrinks.
+     * @param keys the number of keys to make room for.
+     */
+    public void ensureKeyCacheCapacity(int keys) {
+        synchronized (mKeyCache) {
+            mKeyCacheSize = Math.max(mKeyCacheSize, KEY_CACHE_SIZE + keys);
+        }
+    }
+
+    public String obfuscateString(String original) {
         if (original == null) {
             return null;
         }
         try {
-            // Header is appended as an integrity check
-            return Base64.encode(mEncryptor.doFinal((header + original).getBytes(UTF8)));
+            byte[] utf8 = original.getBytes(UTF8);
+            Cipher encryptor = mEncryptor.get();
+            byte[] output = scratch(encryptor.getOutputSize(HEADER_BYTES.length + utf8.length));
+
+            // Header is prepended as an integrity check
+            int length = encryptor.update(HEADER_BYTES, 0, HEADER_BYTES.length, output, 0);
+            length += encryptor.doFinal(utf8, 0, utf8.length, output, length);
+            return Base64.encode(output, 0, length);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Invalid environment", e);
         } catch (GeneralSecurityException e) {
+            mEncryptor.remove();
             throw new RuntimeException("Invalid environment", e);
         }
     }
@@ -114,31 +228,254 @@ public class AESObfuscator {
         return Integer.parseInt(unobfuscateToString(obfuscated));
     }
 
-    public synchronized String unobfuscateToString(String obfuscated) throws ValidationException {
+    public String unobfuscateToString(String obfuscated) throws ValidationException {
         if (TextUtils.isEmpty(obfuscated)) {
             return null;
         }
         try {
-            String result = new String(mDecryptor.doFinal(Base64.decode(obfuscated)), UTF8);
+            byte[] input = Base64.decode(obfuscated);
+            byte[] plain = decryptBuffer(input.length);
+            int length = decrypt(input, 0, input.length, plain);
+
             // Check for presence of header. This serves as a final integrity check, for cases
             // where the block size is correct during decryption.
-            int headerIndex = result.indexOf(header);
-            if (headerIndex != 0) {
+            if (!startsWith(plain, length, HEADER_BYTES)) {
                 throw new ValidationException("Header not found (invalid data or key)" + ":" +
                         obfuscated);
             }
-            return result.substring(header.length(), result.length());
+            return new String(plain, HEADER_BYTES.length, length - HEADER_BYTES.length, UTF8);
         } catch (Base64DecoderException e) {
             throw new ValidationException(e.getMessage() + ":" + obfuscated);
-        } catch (IllegalBlockSizeException e) {
-            throw new ValidationException(e.getMessage() + ":" + obfuscated);
-        } catch (BadPaddingException e) {
+        } catch (GeneralSecurityException e) {
             throw new ValidationException(e.getMessage() + ":" + obfuscated);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Invalid environment", e);
         }
     }
 
+    /**
+     * Obfuscates an int to the compact binary layout: BINARY_HEADER, a type byte and the 4 bytes of the
+     * int (big-endian). The whole thing fits in a single AES block.
+     * @param original the int to obfuscate.
+     * @return the encrypted bytes (OBFUSCATED_INT_SIZE of them).
+     */
+    public byte[] obfuscateToBytes(int original) {
+        byte[] output = new byte[OBFUSCATED_INT_SIZE];
+        obfuscateToBytes(original, output, 0);
+        return output;
+    }
+
+    /**
+     * Same as {@link #obfuscateToBytes(int)} but writes into the given buffer instead of allocating one.
+     * @param original the int to obfuscate.
+     * @param output the buffer to write to. It must have room for OBFUSCATED_INT_SIZE bytes from outputOffset.
+     * @param outputOffset where to start writing.
+     * @return the number of bytes written.
+     */
+    public int obfuscateToBytes(int original, byte[] output, int outputOffset) {
+        if (output.length - outputOffset < OBFUSCATED_INT_SIZE) {
+            throw new IllegalArgumentException("The output buffer is too small");
+        }
+
+        byte[] plain = scratch(BINARY_INT_PREFIX.length + 4);
+        System.arraycopy(BINARY_INT_PREFIX, 0, plain, 0, BINARY_INT_PREFIX.length);
+        int i = BINARY_INT_PREFIX.length;
+        plain[i]     = (byte) (original >>> 24);
+        plain[i + 1] = (byte) (original >>> 16);
+        plain[i + 2] = (byte) (original >>> 8);
+        plain[i + 3] = (byte) original;
+
+        try {
+            return mEncryptor.get().doFinal(plain, 0, i + 4, output, outputOffset);
+        } catch (GeneralSecurityException e) {
+            mEncryptor.remove();
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Obfuscates a string to the compact binary layout: BINARY_HEADER, a type byte and the UTF-8 bytes of
+     * the string.
+     * @param original the string to obfuscate.
+     * @return the encrypted bytes or null if original is null.
+     */
+    public byte[] obfuscateToBytes(String original) {
+        if (original == null) {
+            return null;
+        }
+        try {
+            byte[] utf8 = original.getBytes(UTF8);
+            Cipher encryptor = mEncryptor.get();
+            byte[] output = new byte[encryptor.getOutputSize(BINARY_STRING_PREFIX.length + utf8.length)];
+
+            int length = encryptor.update(BINARY_STRING_PREFIX, 0, BINARY_STRING_PREFIX.length, output, 0);
+            length += encryptor.doFinal(utf8, 0, utf8.length, output, length);
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        } catch (GeneralSecurityException e) {
+            mEncryptor.remove();
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Obfuscates raw bytes (e.g. the binary catalog) to the compact binary layout: BINARY_HEADER, a type byte
+     * and the bytes themselves.
+     * @param original the bytes to obfuscate.
+     * @return the encrypted bytes or null if original is null.
+     */
+    public byte[] obfuscateToBytes(byte[] original) {
+        if (original == null) {
+            return null;
+        }
+        try {
+            Cipher encryptor = mEncryptor.get();
+            byte[] output = new byte[encryptor.getOutputSize(BINARY_BYTES_PREFIX.length + original.length)];
+
+            int length = encryptor.update(BINARY_BYTES_PREFIX, 0, BINARY_BYTES_PREFIX.length, output, 0);
+            length += encryptor.doFinal(original, 0, original.length, output, length);
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (GeneralSecurityException e) {
+            mEncryptor.remove();
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    /**
+     * Reads bytes obfuscated with {@link #obfuscateToBytes(byte[])}.
+     * @param obfuscated the obfuscated bytes.
+     * @return the original bytes.
+     * @throws ValidationException if the value isn't raw bytes obfuscated with this key.
+     */
+    public byte[] unobfuscateBytesToBytes(byte[] obfuscated) throws ValidationException {
+        if (obfuscated == null || obfuscated.length == 0) {
+            throw new ValidationException("Empty value");
+        }
+        // not the scratch buffer: the result is copied out anyway and may be big.
+        byte[] plain = new byte[mDecryptor.get().getOutputSize(obfuscated.length)];
+        int plainLength = decryptBinary(obfuscated, 0, obfuscated.length, plain);
+        if (plain[BINARY_HEADER.length] != TYPE_BYTES) {
+            throw new ValidationException("Not a bytes value");
+        }
+        return Arrays.copyOfRange(plain, BINARY_BYTES_PREFIX.length, plainLength);
+    }
+
+    public int unobfuscateBytesToInt(byte[] obfuscated) throws ValidationException {
+        if (obfuscated == null) {
+            throw new ValidationException("Empty value");
+        }
+        return unobfuscateBytesToInt(obfuscated, 0, obfuscated.length);
+    }
+
+    /**
+     * Reads an int obfuscated with {@link #obfuscateToBytes(int)}. Decrypts into a per-thread buffer so it
+     * doesn't allocate.
+     * @param obfuscated the buffer that holds the obfuscated int.
+     * @param offset where the obfuscated int starts.
+     * @param length the length of the obfuscated int.
+     * @return the int.
+     * @throws ValidationException if the bytes aren't a value obfuscated with this key.
+     */
+    public int unobfuscateBytesToInt(byte[] obfuscated, int offset, int length) throws ValidationException {
+        if (length == 0) {
+            throw new ValidationException("Empty value");
+        }
+        byte[] plain = decryptBuffer(length);
+        int plainLength = decryptBinary(obfuscated, offset, length, plain);
+        if (plain[BINARY_HEADER.length] == TYPE_INT) {
+            return readInt(plain, BINARY_INT_PREFIX.length);
+        }
+        return Integer.parseInt(binaryString(plain, plainLength));
+    }
+
+    public String unobfuscateBytesToString(byte[] obfuscated) throws ValidationException {
+        if (obfuscated == null || obfuscated.length == 0) {
+            return null;
+        }
+        byte[] plain = decryptBuffer(obfuscated.length);
+        int plainLength = decryptBinary(obfuscated, 0, obfuscated.length, plain);
+        if (plain[BINARY_HEADER.length] == TYPE_INT) {
+            return "" + readInt(plain, BINARY_INT_PREFIX.length);
+        }
+        return binaryString(plain, plainLength);
+    }
+
+    private static int readInt(byte[] plain, int i) {
+        return ((plain[i] & 0xff) << 24) | ((plain[i + 1] & 0xff) << 16) |
+                ((plain[i + 2] & 0xff) << 8) | (plain[i + 3] & 0xff);
+    }
+
+    private static String binaryString(byte[] plain, int plainLength) {
+        int i = BINARY_STRING_PREFIX.length;
+        try {
+            return new String(plain, i, plainLength - i, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
+
+    private int decryptBinary(byte[] obfuscated, int offset, int length, byte[] plain) throws ValidationException {
+        int plainLength;
+        try {
+            plainLength = decrypt(obfuscated, offset, length, plain);
+        } catch (GeneralSecurityException e) {
+            throw new ValidationException(e.getMessage());
+        }
+
+        // Same integrity check as the string header, and the type byte must be one we know.
+        if (plainLength < BINARY_HEADER.length + 1 || !startsWith(plain, plainLength, BINARY_HEADER)) {
+            throw new ValidationException("Header not found (invalid data or key)");
+        }
+        byte type = plain[BINARY_HEADER.length];
+        if (!(type == TYPE_INT && plainLength == BINARY_INT_PREFIX.length + 4) && type != TYPE_STRING
+                && type != TYPE_BYTES) {
+            throw new ValidationException("Unknown value type: " + type);
+        }
+        return plainLength;
+    }
+
+    private byte[] decryptBuffer(int inputLength) {
+        return scratch(mDecryptor.get().getOutputSize(inputLength));
+    }
+
+    private int decrypt(byte[] input, int offset, int length, byte[] output) throws GeneralSecurityException {
+        try {
+            return mDecryptor.get().doFinal(input, offset, length, output, 0);
+        } catch (GeneralSecurityException e) {
+            // a cipher that failed may need a reset. this thread builds a fresh one on its next call.
+            mDecryptor.remove();
+            throw e;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the current thread's scratch buffer, at least size bytes long. Larger buffers than
+     *      MAX_SCRATCH_SIZE aren't kept (big values like the catalog JSON are rare).
+     */
+    private static byte[] scratch(int size) {
+        byte[] buffer = mScratch.get();
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            if (size <= MAX_SCRATCH_SIZE) {
+                mScratch.set(buffer);
+            }
+        }
+        return buffer;
+    }
+
     /**
      * Indicates that an error occurred while validating the integrity of data managed by an
      * {@link AESObfuscator}.}
@@ -164,6 +164,28 @@ public class Base64 {
   private final static byte WHITE_SPACE_ENC = -5;
   // Indicates equals sign in encoding
   private final static byte EQUALS_SIGN_ENC = -1;
+  // Indicates an invalid character in encoding
+  private final static byte INVALID_ENC = -9;
+
+  /**
+   * Translates the characters of both alphabets to their 6 bit values
+   * ('+' and '-' are 62, '/' and '_' are 63) so the fast decoder handles
+   * standard and web safe input in the same loop.
+   */
+  private final static byte[] ANY_DECODABET = buildAnyDecodabet();
+
+  private static byte[] buildAnyDecodabet() {
+    byte[] decodabet = new byte[128];
+    for (int i = 0; i < decodabet.length; i++) {
+      decodabet[i] = DECODABET[i] == WHITE_SPACE_ENC ? WHITE_SPACE_ENC : INVALID_ENC;
+    }
+    for (int i = 0; i < 64; i++) {
+      decodabet[ALPHABET[i]] = (byte) i;
+      decodabet[WEBSAFE_ALPHABET[i]] = (byte) i;
+    }
+    decodabet[EQUALS_SIGN] = EQUALS_SIGN_ENC;
+    return decodabet;
+  }
 
   /** Defeats instantiation. */
   private Base64() {
@@ -244,7 +266,20 @@ public class Base64 {
    * @since 1.4
    */
   public static String encode(byte[] source) {
-    return encode(source, 0, source.length, ALPHABET, true);
+    return encode(source, 0, source.length);
+  }
+
+  /**
+   * Encodes part of a byte array into Base64 notation.
+   *
+   * @param source the data to convert
+   * @param off offset in array where conversion should begin
+   * @param len length of data to convert
+   */
+  public static String encode(byte[] source, int off, int len) {
+    byte[] outBuff = new byte[encodedLength(len, true)];
+    encode(source, off, len, outBuff, 0, false, true);
+    return new String(outBuff);
   }
 
   /**
@@ -255,7 +290,69 @@ public class Base64 {
    *        if it does not fall on 3 byte boundaries
    */
   public static String encodeWebSafe(byte[] source, boolean doPadding) {
-    return encode(source, 0, source.length, WEBSAFE_ALPHABET, doPadding);
+    byte[] outBuff = new byte[encodedLength(source.length, doPadding)];
+    encode(source, 0, source.length, outBuff, 0, true, doPadding);
+    return new String(outBuff);
+  }
+
+  /**
+   * Encodes part of a byte array into Base64 notation, straight into the
+   * given destination. Three source bytes at a time are looked up in the
+   * alphabet table. No line breaks are added.
+   *
+   * @param source the data to convert
+   * @param off offset in array where conversion should begin
+   * @param len length of data to convert
+   * @param dest the array to write to. It needs room for
+   *        {@code encodedLength(len, doPadding)} bytes from destOff
+   * @param destOff the index where output will be put
+   * @param webSafe is {@code true} for the web safe alphabet
+   * @param doPadding is {@code true} to pad result with '=' chars
+   *        if it does not fall on 3 byte boundaries
+   * @return the number of bytes written
+   */
+  public static int encode(byte[] source, int off, int len, byte[] dest,
+      int destOff, boolean webSafe, boolean doPadding) {
+    byte[] alphabet = webSafe ? WEBSAFE_ALPHABET : ALPHABET;
+    int s = off;
+    int d = destOff;
+    int end3 = off + len - 2;
+    for (; s < end3; s += 3) {
+      int bits = ((source[s] & 0xff) << 16) | ((source[s + 1] & 0xff) << 8)
+          | (source[s + 2] & 0xff);
+      dest[d++] = alphabet[bits >>> 18];
+      dest[d++] = alphabet[(bits >>> 12) & 0x3f];
+      dest[d++] = alphabet[(bits >>> 6) & 0x3f];
+      dest[d++] = alphabet[bits & 0x3f];
+    }
+
+    int left = off + len - s;
+    if (left > 0) {
+      int bits = (source[s] & 0xff) << 16;
+      if (left == 2) {
+        bits |= (source[s + 1] & 0xff) << 8;
+      }
+      dest[d++] = alphabet[bits >>> 18];
+      dest[d++] = alphabet[(bits >>> 12) & 0x3f];
+      if (left == 2) {
+        dest[d++] = alphabet[(bits >>> 6) & 0x3f];
+      } else if (doPadding) {
+        dest[d++] = EQUALS_SIGN;
+      }
+      if (doPadding) {
+        dest[d++] = EQUALS_SIGN;
+      }
+    }
+    return d - destOff;
+  }
+
+  /**
+   * @param len the length of the data to encode
+   * @param doPadding is {@code true} if the result is padded
+   * @return the length of the Base64 notation of len bytes (no line breaks)
+   */
+  public static int encodedLength(int len, boolean doPadding) {
+    return doPadding ? (len + 2) / 3 * 4 : (len * 4 + 2) / 3;
   }
 
   /**
@@ -416,7 +513,7 @@ public class Base64 {
    * @since 1.4
    */
   public static byte[] decode(String s) throws Base64DecoderException {
-    byte[] bytes = s.getBytes();
+    byte[] bytes = asciiBytes(s);
     return decode(bytes, 0, bytes.length);
   }
 
@@ -428,10 +525,24 @@ public class Base64 {
    * @return the decoded data
    */
   public static byte[] decodeWebSafe(String s) throws Base64DecoderException {
-    byte[] bytes = s.getBytes();
+    byte[] bytes = asciiBytes(s);
     return decodeWebSafe(bytes, 0, bytes.length);
   }
 
+  /**
+   * Copies the chars of a Base64 string to bytes without going through a
+   * charset. Non ASCII chars become an invalid byte.
+   */
+  private static byte[] asciiBytes(String s) {
+    int len = s.length();
+    byte[] bytes = new byte[len];
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      bytes[i] = c < 128 ? (byte) c : (byte) -1;
+    }
+    return bytes;
+  }
+
   /**
    * Decodes Base64 content in byte array format and returns
    * the decoded byte array.
@@ -471,7 +582,7 @@ public class Base64 {
    */
   public static byte[] decode(byte[] source, int off, int len)
       throws Base64DecoderException {
-    return decode(source, off, len, DECODABET);
+    return decodeToNewArray(source, off, len);
   }
 
   /**
@@ -486,7 +597,98 @@ public class Base64 {
    */
   public static byte[] decodeWebSafe(byte[] source, int off, int len)
       throws Base64DecoderException {
-    return decode(source, off, len, WEBSAFE_DECODABET);
+    return decodeToNewArray(source, off, len);
+  }
+
+  private static byte[] decodeToNewArray(byte[] source, int off, int len)
+      throws Base64DecoderException {
+    byte[] outBuff = new byte[decodedMaxLength(len)];
+    int outLen = decode(source, off, len, outBuff, 0);
+    if (outLen == outBuff.length) {
+      return outBuff;
+    }
+    byte[] out = new byte[outLen];
+    System.arraycopy(outBuff, 0, out, 0, outLen);
+    return out;
+  }
+
+  /**
+   * Decodes Base64 content straight into the given destination. Standard
+   * and web safe characters are both accepted (in the same loop, through
+   * one table), padding is optional and white space is skipped.
+   *
+   * @param source the Base64 encoded data
+   * @param off the offset of where to begin decoding
+   * @param len the length of characters to decode
+   * @param dest the array to write to. It needs room for
+   *        {@code decodedMaxLength(len)} bytes from destOff
+   * @param destOff the index where output will be put
+   * @return the number of bytes written
+   * @throws Base64DecoderException
+   */
+  public static int decode(byte[] source, int off, int len, byte[] dest,
+      int destOff) throws Base64DecoderException {
+    int bits = 0;
+    int count = 0;
+    int d = destOff;
+    int end = off + len;
+    int i = off;
+    for (; i < end; i++) {
+      byte c = source[i];
+      byte v = c >= 0 ? ANY_DECODABET[c] : INVALID_ENC;
+      if (v >= 0) {
+        bits = (bits << 6) | v;
+        if (++count == 4) {
+          dest[d++] = (byte) (bits >> 16);
+          dest[d++] = (byte) (bits >> 8);
+          dest[d++] = (byte) bits;
+          bits = 0;
+          count = 0;
+        }
+      } else if (v == EQUALS_SIGN_ENC) {
+        break;
+      } else if (v != WHITE_SPACE_ENC) {
+        throw new Base64DecoderException("Bad Base64 input character at "
+            + (i - off) + ": " + c + "(decimal)");
+      }
+    }
+
+    if (i < end) {
+      // An equals sign (for padding) must not occur at position 0 or 1
+      // and only padding (or white space) may follow it
+      if (count < 2) {
+        throw new Base64DecoderException(
+            "invalid padding byte '=' at byte offset " + (i - off));
+      }
+      for (; i < end; i++) {
+        byte c = source[i];
+        byte v = c >= 0 ? ANY_DECODABET[c] : INVALID_ENC;
+        if (v != EQUALS_SIGN_ENC && v != WHITE_SPACE_ENC) {
+          throw new Base64DecoderException(
+              "padding byte '=' falsely signals end of encoded value "
+                  + "at offset " + (i - off));
+        }
+      }
+    }
+
+    if (count == 1) {
+      throw new Base64DecoderException("single trailing character at offset "
+          + (len - 1));
+    } else if (count == 2) {
+      dest[d++] = (byte) (bits >> 4);
+    } else if (count == 3) {
+      dest[d++] = (byte) (bits >> 10);
+      dest[d++] = (byte) (bits >> 2);
+    }
+    return d - destOff;
+  }
+
+  /**
+   * @param len the length of Base64 content
+   * @return the maximum number of bytes it decodes to
+   */
+  public static int decodedMaxLength(int len) {
+    return len / 4 * 3 + (len % 4) * 3 / 4;
   }
 
   /**
@@ -19,12 +19,20 @@ import android.os.Handler;
 import android.os.Looper;
 import com.squareup.otto.Bus;
 
+import java.util.ArrayList;
+
 public class AndroidBus extends Bus {
     private final Handler mainThread = new Handler(Looper.getMainLooper());
 
+    // the events held back by each thread (see deferPosts()).
+    private final ThreadLocal<ArrayList<Object>> deferred = new ThreadLocal<ArrayList<Object>>();
+
     @Override
     public void post(final Object event) {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
+        ArrayList<Object> events = deferred.get();
+        if (events != null) {
+            events.add(event);
+        } else if (Looper.myLooper() == Looper.getMainLooper()) {
             super.post(event);
         } else {
             mainThread.post(new Runnable() {
@@ -36,6 +44,53 @@ public class AndroidBus extends Bus {
         }
     }
 
+    /**
+     * Holds back the events the current thread posts from now on until {@link #postDeferred()} or
+     * {@link #dropDeferred()} is called. Use it to post the events of a unit of work only once it's done.
+     * @return false if the thread was already holding back its events (whoever started that posts or drops them).
+     */
+    public boolean deferPosts() {
+        if (deferred.get() != null) {
+            return false;
+        }
+
+        deferred.set(new ArrayList<Object>());
+        return true;
+    }
+
+    /**
+     * Posts the events the current thread held back since {@link #deferPosts()}, in order and in one go on the
+     * main thread.
+     */
+    public void postDeferred() {
+        final ArrayList<Object> events = deferred.get();
+        deferred.remove();
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+
+        Runnable postAll = new Runnable() {
+            @Override
+            public void run() {
+                for (Object event : events) {
+                    AndroidBus.super.post(event);
+                }
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            postAll.run();
+        } else {
+            mainThread.post(postAll);
+        }
+    }
+
+    /**
+     * Throws away the events the current thread held back since {@link #deferPosts()}.
+     */
+    public void dropDeferred() {
+        deferred.remove();
+    }
+
     @Override
     public void register(final Object object) {
         if (Looper.myLooper() == Looper.getMainLooper()) {
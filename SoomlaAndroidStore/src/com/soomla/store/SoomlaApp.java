@@ -18,6 +18,7 @@ package com.soomla.store;
 
 import android.app.Application;
 import android.content.Context;
+import com.soomla.store.data.StorageManager;
 
 public class SoomlaApp extends Application{
 
@@ -27,6 +28,20 @@ public class SoomlaApp extends Application{
     public void onCreate() {
         super.onCreate();
         context = getApplicationContext();
+
+        if (StoreConfig.warmUpOnStart) {
+            StorageManager.warmUp();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // the application went to the background. make sure the pending write-behind writes are durable.
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            StorageManager.flush();
+        }
     }
 
     public static void setExternalContext(Context oContext) {
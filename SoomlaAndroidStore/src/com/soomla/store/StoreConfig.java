@@ -48,6 +48,26 @@ public class StoreConfig {
      */
     public static final boolean DB_DELETE = false;
 
+    /*
+    if this is true, writes to the database are kept in memory and written by a background thread in batches.
+    repeated writes to the same key are written once. the pending writes are flushed when the store is closed and
+    when the application goes to the background (see SoomlaApp) but a process crash can lose up to
+    WRITE_BEHIND_DELAY_MS of changes.
+     */
+    public static final boolean writeBehind = false;
+
+    // the time (in milliseconds) a write may stay in memory before the background writer flushes it.
+    public static final long WRITE_BEHIND_DELAY_MS = 1000;
+
+    /*
+    if this is true, SoomlaApp derives the encryption key, opens the database and loads it (and the store's
+    preferences) into memory on a background thread as soon as the application is created. StoreController.initialize
+    and any other early storage access wait for that work instead of doing it on the UI thread.
+    NOTE: the warm-up opens the database with the default storage backend. if you use another one, set it with
+        StorageManager.setStorageBackend in your Application's onCreate before calling super.onCreate().
+     */
+    public static final boolean warmUpOnStart = false;
+
     /** Shared Preferences **/
     public static final String PREFS_NAME      = "store.prefs";
     public static final String DB_INITIALIZED  = "db_initialized";
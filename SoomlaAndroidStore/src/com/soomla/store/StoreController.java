@@ -22,13 +22,17 @@ import com.soomla.billing.BillingService;
 import com.soomla.billing.Consts;
 import com.soomla.billing.PurchaseObserver;
 import com.soomla.billing.ResponseHandler;
+import com.soomla.billing.Security;
+import com.soomla.store.data.IStorageBackend;
 import com.soomla.store.data.ObscuredSharedPreferences;
+import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.domain.GoogleMarketItem;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.events.*;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
 
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -56,12 +60,30 @@ public class StoreController extends PurchaseObserver {
     public void initialize(IStoreAssets storeAssets,
                           String publicKey,
                           String customSecret){
+        initialize(storeAssets, publicKey, customSecret, null);
+    }
+
+    /**
+     * This initializer also initializes {@link StoreInfo}.
+     * @param storeAssets is the definition of your application specific assets.
+     * @param publicKey is the public key given to you from Google.
+     * @param customSecret is your encryption secret (it's used to encrypt your data in the database)
+     * @param storageBackend is where your data is kept. null for the default SQLite database.
+     */
+    public void initialize(IStoreAssets storeAssets,
+                          String publicKey,
+                          String customSecret,
+                          IStorageBackend storageBackend){
 
         if (mInitialized) {
             StoreUtils.LogError(TAG, "StoreController is already initialized. You can't initialize it twice!");
             return;
         }
 
+        if (storageBackend != null) {
+            StorageManager.setStorageBackend(storageBackend);
+        }
+
         SharedPreferences prefs = new ObscuredSharedPreferences(SoomlaApp.getAppContext().getSharedPreferences(StoreConfig.PREFS_NAME, Context.MODE_PRIVATE));
         SharedPreferences.Editor edit = prefs.edit();
         if (publicKey != null && !publicKey.isEmpty()) {
@@ -79,10 +101,16 @@ public class StoreController extends PurchaseObserver {
         edit.putInt("SA_VER_NEW", storeAssets.getVersion());
         edit.commit();
 
+        // the database may have been opened (see StoreConfig.warmUpOnStart) before the new assets version was saved.
+        StorageManager.checkMetadataVersion();
+
         if (storeAssets != null) {
             StoreInfo.setStoreAssets(storeAssets);
         }
 
+        // one sequential read of the whole database instead of a query per item later on.
+        StorageManager.preload();
+
         if (startBillingService()) {
             // We're not restoring transactions automatically anymore.
             // Call storeController.getInstance().restoreTransactions() when you want to do that.
@@ -126,6 +154,8 @@ public class StoreController extends PurchaseObserver {
     public void storeOpening(Activity activity){
         if (!checkInit()) return;
 
+        long start = System.nanoTime();
+
         mLock.lock();
         if (mStoreOpen) {
             StoreUtils.LogError(TAG, "Store is already open !");
@@ -135,7 +165,8 @@ public class StoreController extends PurchaseObserver {
 
         initCompatibilityLayer(activity);
 
-        /* Initialize StoreInfo from database in case any changes were done to it while the store was closed */
+        /* Reload StoreInfo from database in case any changes were done to it while the store was closed (it is only
+           reloaded if the stored catalog changed) */
         StoreInfo.initializeFromDB();
 
         /* Billing */
@@ -145,6 +176,8 @@ public class StoreController extends PurchaseObserver {
 
         mStoreOpen = true;
         mLock.unlock();
+
+        StoreUtils.LogDebug(TAG, "Store opened in " + (System.nanoTime() - start) / 1000000 + "ms");
     }
 
     /**
@@ -159,6 +192,8 @@ public class StoreController extends PurchaseObserver {
 
         stopBillingService();
 //        ResponseHandler.unregister(this);
+
+        StorageManager.flush();
     }
 
     /**
@@ -216,17 +251,27 @@ public class StoreController extends PurchaseObserver {
     @Override
     public void onPurchaseStateChange(Consts.PurchaseState purchaseState, String productId, long purchaseTime, String developerPayload) {
         try {
-            PurchasableVirtualItem purchasableVirtualItem = StoreInfo.getPurchasableItem(productId);
+            final PurchasableVirtualItem purchasableVirtualItem = StoreInfo.getPurchasableItem(productId);
 
             BusProvider.getInstance().post(new PlayPurchaseEvent(purchasableVirtualItem, developerPayload));
 
             if (purchaseState == Consts.PurchaseState.PURCHASED) {
-                purchasableVirtualItem.give(1);
+                StorageManager.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        purchasableVirtualItem.give(1);
+                    }
+                });
             }
 
             if (purchaseState == Consts.PurchaseState.REFUNDED){
                 if (!StoreConfig.friendlyRefunds) {
-                    purchasableVirtualItem.take(1);
+                    StorageManager.runInTransaction(new Runnable() {
+                        @Override
+                        public void run() {
+                            purchasableVirtualItem.take(1);
+                        }
+                    });
                 }
             }
 
@@ -239,6 +284,34 @@ public class StoreController extends PurchaseObserver {
         }
     }
 
+    /**
+     * Applies all the purchases of one notification (on the calling background thread) in a single storage
+     * transaction. Their events are posted, in order, only once it's committed. If the transaction is rolled back
+     * the purchases aren't confirmed so Android Market sends them again.
+     * The balances the purchases change stay locked until the transaction ends (see VirtualItemStorage), so a game
+     * thread changing one of them meanwhile waits for the whole batch instead of having its update overwritten.
+     */
+    @Override
+    public boolean onPurchaseStateChanges(final List<Security.VerifiedPurchase> purchases) {
+        try {
+            // runInTransaction holds back the events until the transaction is committed.
+            StorageManager.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (Security.VerifiedPurchase vp : purchases) {
+                        onPurchaseStateChange(vp.purchaseState, vp.productId, vp.purchaseTime, vp.developerPayload);
+                    }
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            StoreUtils.LogError(TAG, "ERROR : Couldn't apply " + purchases.size() + " purchase state changes: " +
+                    e.getMessage() + ". It's unexpected so an unexpected error is being emitted.");
+            BusProvider.getInstance().post(new UnexpectedStoreErrorEvent());
+            return false;
+        }
+    }
+
     /**
      * docs in {@link PurchaseObserver#onRequestPurchaseResponse(com.soomla.billing.BillingService.RequestPurchase, com.soomla.billing.Consts.ResponseCode)}.
      */
@@ -1,6 +1,5 @@
 package com.soomla.store;
 
-import android.text.TextUtils;
 import com.soomla.store.data.StorageManager;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.domain.NonConsumableItem;
@@ -37,6 +36,28 @@ public class StoreInventory {
         item.take(amount);
     }
 
+    /**
+     * The functions below take the ordinal of an item (see {@link StoreInfo#getItemOrdinal(String)}) in place of its
+     * itemId. They don't look up the itemId so they're meant for code that checks the inventory very often
+     * (e.g. on every frame). Get the ordinals once, after the store is initialized.
+     */
+
+    // The ordinal must be of a VirtualCurrency or SingleUseVG or LifetimeVG or EquippableVG
+    public static int getVirtualItemBalance(int itemOrdinal) throws VirtualItemNotFoundException {
+        VirtualItem item = StoreInfo.getVirtualItem(itemOrdinal);
+        return StorageManager.getVirtualItemStorage(item).getBalance(itemOrdinal);
+    }
+
+    public static void giveVirtualItem(int itemOrdinal, int amount) throws VirtualItemNotFoundException  {
+        VirtualItem item = StoreInfo.getVirtualItem(itemOrdinal);
+        item.give(amount);
+    }
+
+    public static void takeVirtualItem(int itemOrdinal, int amount) throws VirtualItemNotFoundException  {
+        VirtualItem item = StoreInfo.getVirtualItem(itemOrdinal);
+        item.take(amount);
+    }
+
     /** Virtual Goods **/
 
     public static void equipVirtualGood(String goodItemId) throws VirtualItemNotFoundException, ClassCastException{
@@ -57,6 +78,34 @@ public class StoreInventory {
         return StorageManager.getVirtualGoodsStorage().isEquipped(good);
     }
 
+    public static void equipVirtualGood(int goodOrdinal) throws VirtualItemNotFoundException, ClassCastException{
+        EquippableVG good = (EquippableVG) StoreInfo.getVirtualItem(goodOrdinal);
+
+        StorageManager.getVirtualGoodsStorage().equip(good);
+    }
+
+    public static void unEquipVirtualGood(int goodOrdinal) throws VirtualItemNotFoundException, ClassCastException{
+        EquippableVG good = (EquippableVG) StoreInfo.getVirtualItem(goodOrdinal);
+
+        StorageManager.getVirtualGoodsStorage().unequip(good);
+    }
+
+    public static boolean isVirtualGoodEquipped(int goodOrdinal) throws VirtualItemNotFoundException, ClassCastException{
+        if (!(StoreInfo.getVirtualItem(goodOrdinal) instanceof EquippableVG)) {
+            throw new ClassCastException("The item with ordinal " + goodOrdinal + " is not an EquippableVG.");
+        }
+
+        return StorageManager.getVirtualGoodsStorage().isEquipped(goodOrdinal);
+    }
+
+    public static int getGoodUpgradeLevel(int goodOrdinal) throws VirtualItemNotFoundException, ClassCastException {
+        if (!(StoreInfo.getVirtualItem(goodOrdinal) instanceof VirtualGood)) {
+            throw new ClassCastException("The item with ordinal " + goodOrdinal + " is not a VirtualGood.");
+        }
+
+        return StorageManager.getVirtualGoodsStorage().getUpgradeLevel(goodOrdinal);
+    }
+
     public static int getGoodUpgradeLevel(String goodItemId) throws VirtualItemNotFoundException {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
         UpgradeVG upgradeVG = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good);
@@ -64,14 +113,7 @@ public class StoreInventory {
             return 0;
         }
 
-        UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
-        int level = 1;
-        while (!first.equals(upgradeVG)) {
-            first = (UpgradeVG) StoreInfo.getVirtualItem(first.getNextItemId());
-            level++;
-        }
-
-        return level;
+        return StoreInfo.getUpgradeLevel(upgradeVG);
     }
 
     public static String getGoodCurrentUpgrade(String goodItemId) throws VirtualItemNotFoundException {
@@ -87,11 +129,10 @@ public class StoreInventory {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
         UpgradeVG upgradeVG = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good);
         if (upgradeVG != null) {
-            String nextItemId = upgradeVG.getNextItemId();
-            if (TextUtils.isEmpty(nextItemId)) {
+            UpgradeVG vgu = StoreInfo.getNextUpgrade(upgradeVG);
+            if (vgu == null) {
                 return;
             }
-            UpgradeVG vgu = (UpgradeVG) StoreInfo.getVirtualItem(nextItemId);
             vgu.buy();
         } else {
             UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
@@ -35,7 +35,26 @@ public class StoreUtils {
         Log.e(tag, message);
     }
 
+    /**
+     * The device id is part of every encryption key the store uses. It doesn't change while the process lives so
+     * it's fetched from Settings.Secure once and kept.
+     * @return the device's ANDROID_ID (or a fallback id if it can't be fetched).
+     */
     public static String deviceId() {
+        String deviceId = mDeviceId;
+        if (deviceId == null) {
+            synchronized (StoreUtils.class) {
+                if (mDeviceId == null) {
+                    mDeviceId = fetchDeviceId();
+                }
+                deviceId = mDeviceId;
+            }
+        }
+
+        return deviceId;
+    }
+
+    private static String fetchDeviceId() {
         String androidId = Settings.Secure.getString(SoomlaApp.getAppContext().getContentResolver(), Settings.Secure.ANDROID_ID);
         if (androidId == null) {
             // This is a fallback in case the device id cannot be retrieved on the device
@@ -48,4 +67,6 @@ public class StoreUtils {
     }
 
     private static String TAG = "SOOMLA StoreUtils";
+
+    private static volatile String mDeviceId;
 }
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.store.StoreUtils;
+import com.soomla.store.domain.NonConsumableItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.*;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+
+import java.util.*;
+
+/**
+ * One loaded catalog: read-only, array backed copies of its lists and all the indexes StoreInfo answers from.
+ * A catalog is never changed once it's built. StoreInfo replaces the whole catalog with a single (volatile) write,
+ * so a reader that takes the catalog once sees an ordinal and the item (and inventory state) it belongs to from
+ * the same catalog.
+ */
+final class Catalog {
+
+    /**
+     * The catalog before any catalog is loaded: no items, generation 0.
+     */
+    static final Catalog EMPTY = new Catalog(0, Collections.<VirtualCurrency>emptyList(),
+            Collections.<VirtualCurrencyPack>emptyList(), Collections.<VirtualGood>emptyList(),
+            Collections.<VirtualCategory>emptyList(), Collections.<NonConsumableItem>emptyList());
+
+    Catalog(int generation, List<VirtualCurrency> currencies, List<VirtualCurrencyPack> currencyPacks,
+            List<VirtualGood> goods, List<VirtualCategory> categories, List<NonConsumableItem> nonConsumables) {
+        this.generation = generation;
+        this.currencies = Collections.unmodifiableList(new ArrayList<VirtualCurrency>(currencies));
+        this.currencyPacks = Collections.unmodifiableList(new ArrayList<VirtualCurrencyPack>(currencyPacks));
+        this.goods = Collections.unmodifiableList(new ArrayList<VirtualGood>(goods));
+        this.categories = Collections.unmodifiableList(new ArrayList<VirtualCategory>(categories));
+        this.nonConsumables = Collections.unmodifiableList(new ArrayList<NonConsumableItem>(nonConsumables));
+
+        ArrayList<VirtualItem> items = new ArrayList<VirtualItem>();
+        ArrayList<EquippableVG> equippableGoods = new ArrayList<EquippableVG>();
+        ArrayList<SingleUseVG> singleUseGoods = new ArrayList<SingleUseVG>();
+
+        for(VirtualCurrency vi : this.currencies) {
+            addItem(vi, items);
+        }
+
+        for(VirtualCurrencyPack vi : this.currencyPacks) {
+            addItem(vi, items);
+
+            List<VirtualCurrencyPack> packs = mCurrenciesPacks.get(vi.getCurrencyItemId());
+            if (packs == null) {
+                packs = new ArrayList<VirtualCurrencyPack>();
+                mCurrenciesPacks.put(vi.getCurrencyItemId(), packs);
+            }
+            packs.add(vi);
+
+            addPurchasable(vi);
+        }
+
+        for(VirtualGood vi : this.goods) {
+            addItem(vi, items);
+
+            if (vi instanceof UpgradeVG) {
+                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vi).getGoodItemId());
+                if (upgrades == null) {
+                    upgrades = new ArrayList<UpgradeVG>();
+                    mGoodsUpgrades.put(((UpgradeVG) vi).getGoodItemId(), upgrades);
+                }
+                upgrades.add((UpgradeVG) vi);
+            } else if (vi instanceof EquippableVG) {
+                equippableGoods.add((EquippableVG) vi);
+            } else if (vi instanceof SingleUseVG) {
+                singleUseGoods.add((SingleUseVG) vi);
+            }
+
+            addPurchasable(vi);
+        }
+
+        for(NonConsumableItem vi : this.nonConsumables) {
+            addItem(vi, items);
+            addPurchasable(vi);
+        }
+
+        mItems = items.toArray(new VirtualItem[items.size()]);
+
+        for(VirtualCategory category : this.categories) {
+            ArrayList<VirtualGood> categoryGoods = new ArrayList<VirtualGood>();
+            for(String goodItemId : category.getGoodsItemIds()) {
+                mGoodsCategories.put(goodItemId, category);
+
+                int ordinal = ordinalOf(goodItemId);
+                VirtualItem good = ordinal >= 0 ? mItems[ordinal] : null;
+                if (good instanceof VirtualGood) {
+                    categoryGoods.add((VirtualGood) good);
+                }
+            }
+            mCategoriesGoods.put(category.getName(), Collections.<VirtualGood>unmodifiableList(categoryGoods));
+        }
+
+        for(Map.Entry<String, List<VirtualCurrencyPack>> entry : mCurrenciesPacks.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        this.equippableGoods = Collections.<EquippableVG>unmodifiableList(equippableGoods);
+        this.singleUseGoods = Collections.<SingleUseVG>unmodifiableList(singleUseGoods);
+
+        for(Map.Entry<String, List<UpgradeVG>> entry : mGoodsUpgrades.entrySet()) {
+            UpgradeVG[] chain = chainUpgrades(entry.getKey(), entry.getValue());
+            if (chain.length == 0) {
+                continue;
+            }
+
+            mGoodsUpgradeChains.put(entry.getKey(), chain);
+            for (int i = 0; i < chain.length; i++) {
+                mUpgradeLevels.put(chain[i].getItemId(), i + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the ordinal of the item with the given itemId or -1 if it's not in this catalog.
+     */
+    int ordinalOf(String itemId) {
+        Integer ordinal = mItemOrdinals.get(itemId);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * @return the item with the given (valid) ordinal.
+     */
+    VirtualItem itemAt(int ordinal) {
+        return mItems[ordinal];
+    }
+
+    /**
+     * @return the number of items in this catalog (the ordinals are 0 to this number - 1).
+     */
+    int getItemCount() {
+        return mItems.length;
+    }
+
+    PurchasableVirtualItem getPurchasableItem(String productId) {
+        return mPurchasableItems.get(productId);
+    }
+
+    VirtualCategory getCategory(String goodItemId) {
+        return mGoodsCategories.get(goodItemId);
+    }
+
+    List<UpgradeVG> getGoodUpgrades(String goodItemId) {
+        return mGoodsUpgrades.get(goodItemId);
+    }
+
+    /**
+     * @return the upgrades of the given good in the order of their chain or null if it has no upgrades.
+     */
+    UpgradeVG[] getGoodUpgradeChain(String goodItemId) {
+        return mGoodsUpgradeChains.get(goodItemId);
+    }
+
+    /**
+     * @return the level of the given upgrade (the first upgrade is level 1) or 0 if it's not in the chain.
+     */
+    int getUpgradeLevel(UpgradeVG upgradeVG) {
+        Integer level = mUpgradeLevels.get(upgradeVG.getItemId());
+        return level != null ? level : 0;
+    }
+
+    /**
+     * @return the goods of the given category (in the order of the category) or an empty list.
+     */
+    List<VirtualGood> getCategoryGoods(VirtualCategory category) {
+        List<VirtualGood> goods = mCategoriesGoods.get(category.getName());
+        return goods != null ? goods : Collections.<VirtualGood>emptyList();
+    }
+
+    /**
+     * @return the packs that give the given currency or an empty list.
+     */
+    List<VirtualCurrencyPack> getCurrencyPacks(String currencyItemId) {
+        List<VirtualCurrencyPack> packs = mCurrenciesPacks.get(currencyItemId);
+        return packs != null ? packs : Collections.<VirtualCurrencyPack>emptyList();
+    }
+
+    /** Private functions **/
+
+    /**
+     * Gives the item the next ordinal. An item with an itemId that's already in the catalog replaces the former
+     * item (and takes its ordinal).
+     */
+    private void addItem(VirtualItem item, ArrayList<VirtualItem> items) {
+        Integer ordinal = mItemOrdinals.get(item.getItemId());
+        if (ordinal != null) {
+            items.set(ordinal, item);
+            return;
+        }
+
+        mItemOrdinals.put(item.getItemId(), items.size());
+        items.add(item);
+    }
+
+    private void addPurchasable(PurchasableVirtualItem item) {
+        PurchaseType purchaseType = item.getPurchaseType();
+        if (purchaseType instanceof PurchaseWithMarket) {
+            mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), item);
+        }
+    }
+
+    /**
+     * Orders the upgrades of a VirtualGood by following the chain from the upgrade that has no previous one.
+     * A broken chain (no first upgrade, several first upgrades, a next upgrade that doesn't exist or doesn't
+     * point back, a cycle or upgrades that can't be reached) is reported here, and only the part of the chain
+     * that could be followed from its first upgrade is returned.
+     */
+    private static UpgradeVG[] chainUpgrades(String goodItemId, List<UpgradeVG> upgrades) {
+        HashMap<String, UpgradeVG> byItemId = new HashMap<String, UpgradeVG>();
+        UpgradeVG first = null;
+        for(UpgradeVG upgradeVG : upgrades) {
+            byItemId.put(upgradeVG.getItemId(), upgradeVG);
+            if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
+                if (first != null) {
+                    StoreUtils.LogError(TAG, "The upgrades of " + goodItemId + " have more than one first upgrade: " +
+                            first.getItemId() + " and " + upgradeVG.getItemId());
+                    continue;
+                }
+                first = upgradeVG;
+            }
+        }
+
+        if (first == null) {
+            StoreUtils.LogError(TAG, "The upgrades of " + goodItemId + " have no first upgrade (the chain is cyclic).");
+            return new UpgradeVG[0];
+        }
+
+        ArrayList<UpgradeVG> chain = new ArrayList<UpgradeVG>(upgrades.size());
+        HashSet<String> chained = new HashSet<String>();
+        UpgradeVG current = first;
+        while (current != null) {
+            chain.add(current);
+            chained.add(current.getItemId());
+
+            String nextItemId = current.getNextItemId();
+            if (TextUtils.isEmpty(nextItemId)) {
+                break;
+            }
+
+            UpgradeVG next = byItemId.get(nextItemId);
+            if (next == null) {
+                StoreUtils.LogError(TAG, "The upgrade " + current.getItemId() + " of " + goodItemId +
+                        " points to a next upgrade that doesn't exist: " + nextItemId);
+                break;
+            }
+            if (chained.contains(nextItemId)) {
+                StoreUtils.LogError(TAG, "The upgrades of " + goodItemId + " are cyclic at: " + nextItemId);
+                break;
+            }
+            if (!current.getItemId().equals(next.getPrevItemId())) {
+                StoreUtils.LogError(TAG, "The upgrade " + nextItemId + " of " + goodItemId +
+                        " doesn't point back to its previous upgrade: " + current.getItemId());
+            }
+            current = next;
+        }
+
+        if (chain.size() < byItemId.size()) {
+            StoreUtils.LogError(TAG, "Some upgrades of " + goodItemId + " can't be reached from its first upgrade: " +
+                    (byItemId.size() - chain.size()) + " upgrades are left out.");
+        }
+
+        return chain.toArray(new UpgradeVG[chain.size()]);
+    }
+
+    // goes up every time a catalog is loaded, see StoreInfo.getCatalogGeneration().
+    final int generation;
+
+    final List<VirtualCurrency>         currencies;
+    final List<VirtualCurrencyPack>     currencyPacks;
+    final List<VirtualGood>             goods;
+    final List<VirtualCategory>         categories;
+    final List<NonConsumableItem>       nonConsumables;
+    final List<EquippableVG>            equippableGoods;
+    final List<SingleUseVG>             singleUseGoods;
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA Catalog";
+
+    // all the virtual items, the index of an item in mItems is its ordinal.
+    private final VirtualItem[] mItems;
+    private final HashMap<String, Integer> mItemOrdinals = new HashMap<String, Integer>();
+
+    private final HashMap<String, PurchasableVirtualItem> mPurchasableItems =
+            new HashMap<String, PurchasableVirtualItem>();
+    private final HashMap<String, VirtualCategory> mGoodsCategories = new HashMap<String, VirtualCategory>();
+    private final HashMap<String, List<UpgradeVG>> mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+
+    // the upgrades of every VirtualGood in the order of their chain, and the level (1 based) of every upgrade
+    // in its chain.
+    private final HashMap<String, UpgradeVG[]> mGoodsUpgradeChains = new HashMap<String, UpgradeVG[]>();
+    private final HashMap<String, Integer> mUpgradeLevels = new HashMap<String, Integer>();
+
+    // the goods of every category (by its name) and the packs of every currency (by its itemId).
+    private final HashMap<String, List<VirtualGood>> mCategoriesGoods = new HashMap<String, List<VirtualGood>>();
+    private final HashMap<String, List<VirtualCurrencyPack>> mCurrenciesPacks =
+            new HashMap<String, List<VirtualCurrencyPack>>();
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.data;
+
+import com.soomla.store.domain.GoogleMarketItem;
+import com.soomla.store.domain.NonConsumableItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.*;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The catalog (all the lists StoreInfo holds) in a compact binary form that's written and read in one pass,
+ * without building a JSON tree. StoreInfo keeps it in the database in place of the catalog JSON.
+ *
+ * Layout: MAGIC, FORMAT_VERSION, then the currencies, currency packs, goods, categories and non-consumables,
+ * each list prefixed with its size. Every item is its fields in a fixed order (goods start with their kind).
+ * Strings are a presence byte followed by modified UTF-8.
+ */
+class CatalogSnapshot {
+
+    CatalogSnapshot(List<VirtualCurrency> currencies, List<VirtualCurrencyPack> currencyPacks,
+                    List<VirtualGood> goods, List<VirtualCategory> categories,
+                    List<NonConsumableItem> nonConsumables) {
+        this.currencies = currencies;
+        this.currencyPacks = currencyPacks;
+        this.goods = goods;
+        this.categories = categories;
+        this.nonConsumables = nonConsumables;
+    }
+
+    final List<VirtualCurrency> currencies;
+    final List<VirtualCurrencyPack> currencyPacks;
+    final List<VirtualGood> goods;
+    final List<VirtualCategory> categories;
+    final List<NonConsumableItem> nonConsumables;
+
+    /**
+     * @throws IOException if one of the goods is of a kind the snapshot doesn't know (see writeGood()).
+     */
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+
+        out.writeInt(currencies.size());
+        for (VirtualCurrency c : currencies) {
+            writeItem(out, c);
+        }
+
+        out.writeInt(currencyPacks.size());
+        for (VirtualCurrencyPack pack : currencyPacks) {
+            writeItem(out, pack);
+            writePurchaseType(out, pack.getPurchaseType());
+            out.writeInt(pack.getCurrencyAmount());
+            writeString(out, pack.getCurrencyItemId());
+        }
+
+        out.writeInt(goods.size());
+        for (VirtualGood good : goods) {
+            writeGood(out, good);
+        }
+
+        out.writeInt(categories.size());
+        for (VirtualCategory category : categories) {
+            writeString(out, category.getName());
+            out.writeInt(category.getGoodsItemIds().size());
+            for (String goodItemId : category.getGoodsItemIds()) {
+                writeString(out, goodItemId);
+            }
+        }
+
+        out.writeInt(nonConsumables.size());
+        for (NonConsumableItem non : nonConsumables) {
+            writeItem(out, non);
+            writePurchaseType(out, non.getPurchaseType());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes aren't a (valid) catalog snapshot (or are one of a newer format).
+     */
+    static CatalogSnapshot fromBytes(byte[] snapshot) throws IOException {
+        try {
+            return read(snapshot);
+        } catch (RuntimeException e) {
+            // an item that can't be built out of what was read.
+            throw new IOException("Invalid catalog snapshot", e);
+        }
+    }
+
+    /** Private functions **/
+
+    private static CatalogSnapshot read(byte[] snapshot) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a catalog snapshot");
+        }
+        int version = in.readShort();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown catalog snapshot version: " + version);
+        }
+
+        int count = readCount(in);
+        ArrayList<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            String description = readString(in);
+            currencies.add(new VirtualCurrency(name, description, readString(in)));
+        }
+
+        count = readCount(in);
+        ArrayList<VirtualCurrencyPack> currencyPacks = new ArrayList<VirtualCurrencyPack>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            String description = readString(in);
+            String itemId = readString(in);
+            PurchaseType purchaseType = readPurchaseType(in);
+            int currencyAmount = in.readInt();
+            currencyPacks.add(new VirtualCurrencyPack(name, description, itemId, currencyAmount,
+                    readString(in), purchaseType));
+        }
+
+        count = readCount(in);
+        ArrayList<VirtualGood> goods = new ArrayList<VirtualGood>(count);
+        for (int i = 0; i < count; i++) {
+            goods.add(readGood(in));
+        }
+
+        count = readCount(in);
+        ArrayList<VirtualCategory> categories = new ArrayList<VirtualCategory>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            int goodsCount = readCount(in);
+            ArrayList<String> goodsItemIds = new ArrayList<String>(goodsCount);
+            for (int j = 0; j < goodsCount; j++) {
+                goodsItemIds.add(readString(in));
+            }
+            categories.add(new VirtualCategory(name, goodsItemIds));
+        }
+
+        count = readCount(in);
+        ArrayList<NonConsumableItem> nonConsumables = new ArrayList<NonConsumableItem>(count);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            String description = readString(in);
+            String itemId = readString(in);
+            PurchaseType purchaseType = readPurchaseType(in);
+            if (!(purchaseType instanceof PurchaseWithMarket)) {
+                throw new IOException("A NonConsumableItem must be purchased with the market: " + itemId);
+            }
+            nonConsumables.add(new NonConsumableItem(name, description, itemId, (PurchaseWithMarket) purchaseType));
+        }
+
+        return new CatalogSnapshot(currencies, currencyPacks, goods, categories, nonConsumables);
+    }
+
+    /**
+     * Reads the size of a list. Every element takes at least a byte so a size larger than what's left to read
+     * (or a negative one) means the snapshot is corrupt.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static void writeItem(DataOutputStream out, VirtualItem item) throws IOException {
+        writeString(out, item.getName());
+        writeString(out, item.getDescription());
+        writeString(out, item.getItemId());
+    }
+
+    private static void writeGood(DataOutputStream out, VirtualGood good) throws IOException {
+        // the subclasses are checked before the classes they extend.
+        if (good instanceof UpgradeVG) {
+            out.writeByte(GOOD_UPGRADE);
+        } else if (good instanceof SingleUsePackVG) {
+            out.writeByte(GOOD_SINGLE_USE_PACK);
+        } else if (good instanceof SingleUseVG) {
+            out.writeByte(GOOD_SINGLE_USE);
+        } else if (good instanceof EquippableVG) {
+            out.writeByte(GOOD_EQUIPPABLE);
+        } else if (good instanceof LifetimeVG) {
+            out.writeByte(GOOD_LIFETIME);
+        } else {
+            throw new IOException("Unknown kind of VirtualGood: " + good.getClass().getName());
+        }
+
+        writeItem(out, good);
+        writePurchaseType(out, good.getPurchaseType());
+
+        if (good instanceof UpgradeVG) {
+            UpgradeVG upgrade = (UpgradeVG) good;
+            writeString(out, upgrade.getGoodItemId());
+            writeString(out, upgrade.getPrevItemId());
+            writeString(out, upgrade.getNextItemId());
+        } else if (good instanceof SingleUsePackVG) {
+            SingleUsePackVG pack = (SingleUsePackVG) good;
+            writeString(out, pack.getGoodItemId());
+            out.writeInt(pack.getGoodAmount());
+        } else if (good instanceof EquippableVG) {
+            out.writeByte(((EquippableVG) good).getEquippingModel().ordinal());
+        }
+    }
+
+    private static VirtualGood readGood(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        String name = readString(in);
+        String description = readString(in);
+        String itemId = readString(in);
+        PurchaseType purchaseType = readPurchaseType(in);
+
+        switch (kind) {
+            case GOOD_SINGLE_USE:
+                return new SingleUseVG(name, description, itemId, purchaseType);
+            case GOOD_LIFETIME:
+                return new LifetimeVG(name, description, itemId, purchaseType);
+            case GOOD_EQUIPPABLE:
+                EquippableVG.EquippingModel[] models = EquippableVG.EquippingModel.values();
+                int model = in.readByte();
+                if (model < 0 || model >= models.length) {
+                    throw new IOException("Unknown equipping model: " + model);
+                }
+                return new EquippableVG(models[model], name, description, itemId, purchaseType);
+            case GOOD_SINGLE_USE_PACK:
+                String goodItemId = readString(in);
+                int amount = in.readInt();
+                return new SingleUsePackVG(goodItemId, amount, name, description, itemId, purchaseType);
+            case GOOD_UPGRADE:
+                String upgradedItemId = readString(in);
+                String prevItemId = readString(in);
+                String nextItemId = readString(in);
+                return new UpgradeVG(upgradedItemId, prevItemId, nextItemId, name, description, itemId,
+                        purchaseType);
+            default:
+                throw new IOException("Unknown kind of VirtualGood: " + kind);
+        }
+    }
+
+    private static void writePurchaseType(DataOutputStream out, PurchaseType purchaseType) throws IOException {
+        if (purchaseType instanceof PurchaseWithMarket) {
+            GoogleMarketItem marketItem = ((PurchaseWithMarket) purchaseType).getGoogleMarketItem();
+            out.writeByte(PURCHASE_WITH_MARKET);
+            writeString(out, marketItem.getProductId());
+            out.writeByte(marketItem.getManaged().ordinal());
+            out.writeDouble(marketItem.getPrice());
+        } else if (purchaseType instanceof PurchaseWithVirtualItem) {
+            PurchaseWithVirtualItem withItem = (PurchaseWithVirtualItem) purchaseType;
+            out.writeByte(PURCHASE_WITH_VIRTUAL_ITEM);
+            writeString(out, withItem.getTargetItemId());
+            out.writeInt(withItem.getAmount());
+        } else {
+            out.writeByte(PURCHASE_NONE);
+        }
+    }
+
+    private static PurchaseType readPurchaseType(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case PURCHASE_WITH_MARKET:
+                String productId = readString(in);
+                GoogleMarketItem.Managed[] managedValues = GoogleMarketItem.Managed.values();
+                int managed = in.readByte();
+                if (managed < 0 || managed >= managedValues.length) {
+                    throw new IOException("Unknown managed type: " + managed);
+                }
+                double price = in.readDouble();
+                return new PurchaseWithMarket(new GoogleMarketItem(productId, managedValues[managed], price));
+            case PURCHASE_WITH_VIRTUAL_ITEM:
+                String targetItemId = readString(in);
+                return new PurchaseWithVirtualItem(targetItemId, in.readInt());
+            case PURCHASE_NONE:
+                return null;
+            default:
+                throw new IOException("Unknown purchase type: " + type);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+
+    /** Private Members **/
+
+    private static final int   MAGIC          = 0x53434154; // "SCAT"
+    private static final short FORMAT_VERSION = 1;
+
+    private static final byte GOOD_SINGLE_USE      = 1;
+    private static final byte GOOD_LIFETIME        = 2;
+    private static final byte GOOD_EQUIPPABLE      = 3;
+    private static final byte GOOD_SINGLE_USE_PACK = 4;
+    private static final byte GOOD_UPGRADE         = 5;
+
+    private static final byte PURCHASE_NONE              = 0;
+    private static final byte PURCHASE_WITH_MARKET       = 1;
+    private static final byte PURCHASE_WITH_VIRTUAL_ITEM = 2;
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.data;
+
+import com.soomla.store.StoreUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A storage backend that keeps all the key-val pairs in one file.
+ * The file is read once when the backend is created. Every write (or batch of writes) rewrites it to a
+ * temporary file which then replaces the old one, so the file always holds either the old or the new state.
+ * A file that can't be read is kept aside (as [file].corrupt) rather than overwritten.
+ */
+public class FileStorageBackend implements IStorageBackend {
+
+    /**
+     * @param file the file to keep the key-val pairs in. It's created if it doesn't exist.
+     */
+    public FileStorageBackend(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+        load();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return mRows.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] val) {
+        if (val == null) {
+            delete(key);
+            return;
+        }
+
+        HashMap<String, byte[]> rows = new HashMap<String, byte[]>(mRows);
+        rows.put(key, val);
+        save(rows);
+    }
+
+    @Override
+    public void delete(String key) {
+        if (!mRows.containsKey(key)) {
+            return;
+        }
+
+        HashMap<String, byte[]> rows = new HashMap<String, byte[]>(mRows);
+        rows.remove(key);
+        save(rows);
+    }
+
+    @Override
+    public void batch(Map<String, byte[]> writes) {
+        HashMap<String, byte[]> rows = new HashMap<String, byte[]>(mRows);
+        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+            if (entry.getValue() == null) {
+                rows.remove(entry.getKey());
+            } else {
+                rows.put(entry.getKey(), entry.getValue());
+            }
+        }
+        save(rows);
+    }
+
+    @Override
+    public HashMap<String, byte[]> scan() {
+        return new HashMap<String, byte[]>(mRows);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** Private functions **/
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        HashMap<String, byte[]> rows = new HashMap<String, byte[]>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                throw new IOException("Unknown file version: " + version);
+            }
+
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid row count: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > mFile.length()) {
+                    throw new IOException("Invalid value length: " + length);
+                }
+                byte[] val = new byte[length];
+                in.readFully(val);
+                rows.put(key, val);
+            }
+        } catch (IOException e) {
+            closeQuietly(in);
+            in = null;
+
+            // the file is kept aside (the next write would replace it) and we start over with an empty store.
+            File corruptFile = new File(mFile.getPath() + ".corrupt");
+            if (!mFile.renameTo(corruptFile)) {
+                throw new RuntimeException("Couldn't read " + mFile + " and couldn't keep it aside", e);
+            }
+            StoreUtils.LogError(TAG, "Couldn't read " + mFile + " (kept as " + corruptFile + "): " + e.getMessage());
+            return;
+        } finally {
+            closeQuietly(in);
+        }
+
+        mRows = rows;
+    }
+
+    /**
+     * Writes the given rows and only then makes them the backend's rows, so a failed write changes nothing.
+     */
+    private void save(HashMap<String, byte[]> rows) {
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = new FileOutputStream(mTempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(rows.size());
+            for (Map.Entry<String, byte[]> entry : rows.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            fileOut = null;
+
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + mTempFile + " to " + mFile);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write " + mFile, e);
+        } finally {
+            closeQuietly(fileOut);
+        }
+
+        mRows = rows;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do about it.
+            }
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG          = "SOOMLA FileStorageBackend";
+    private static final int    FILE_VERSION = 1;
+
+    private final File mFile;
+    private final File mTempFile;
+    private HashMap<String, byte[]> mRows = new HashMap<String, byte[]>();
+}
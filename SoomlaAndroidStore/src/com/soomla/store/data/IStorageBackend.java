@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This interface represents the engine that keeps the store's key-val pairs.
+ * {@link KeyValDatabase} sits above it and takes care of caching, write-behind and transactions so a backend
+ * only has to store bytes. Keys and values reach the backend already obfuscated.
+ *
+ * KeyValDatabase never calls a backend from two threads at the same time.
+ * Pass your backend to StoreController.initialize to use it instead of the default SQLite one.
+ */
+public interface IStorageBackend {
+
+    /**
+     * @param key the key of the key-val pair.
+     * @return the value for the given key or null if there's no such key.
+     */
+    byte[] get(String key);
+
+    /**
+     * Sets the given value to the given key.
+     * @param key the key of the key-val pair.
+     * @param val the val of the key-val pair. A null val deletes the key.
+     */
+    void put(String key, byte[] val);
+
+    /**
+     * Deletes the key-val pair with the given key (if there's one).
+     * @param key the key of the key-val pair.
+     */
+    void delete(String key);
+
+    /**
+     * Applies all the given writes atomically: either all of them are durable or none is.
+     * @param writes keys to their new values, in write order. A null value deletes the key.
+     */
+    void batch(Map<String, byte[]> writes);
+
+    /**
+     * @return all the key-val pairs.
+     */
+    HashMap<String, byte[]> scan();
+
+    /**
+     * Releases the backend's resources. It isn't used after this call.
+     */
+    void close();
+}
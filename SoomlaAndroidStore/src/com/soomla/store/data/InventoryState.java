@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.StoreUtils;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The live inventory of the catalog's items: balances, equipped flags and current upgrades (and their levels),
+ * kept in primitive arrays indexed by the items' ordinals (see {@link StoreInfo#getItemOrdinal(String)}).
+ * The arrays are filled in one pass over the (decrypted) database the first time they're needed and the storage
+ * classes update them after every committed write (see {@link KeyValDatabase#runOnCommit(Runnable)}), so reading
+ * them doesn't hash, box or decrypt anything. They only ever hold committed values, so a transaction reads its own
+ * writes from the database.
+ * The arrays belong to one catalog (its generation): every call passes the catalog its ordinal was taken from,
+ * and the arrays are filled again when it's not the one they were filled for (the ordinals may have changed).
+ */
+final class InventoryState {
+
+    static int getBalance(Catalog catalog, int ordinal) {
+        while (true) {
+            synchronized (mLock) {
+                if (isLoadedFor(catalog)) {
+                    return mBalances[ordinal];
+                }
+            }
+            load(catalog);
+        }
+    }
+
+    static void setBalance(Catalog catalog, int ordinal, int balance) {
+        synchronized (mLock) {
+            if (isLoadedFor(catalog)) {
+                mBalances[ordinal] = balance;
+            } else {
+                discardLoading();
+            }
+        }
+    }
+
+    static boolean isEquipped(Catalog catalog, int ordinal) {
+        while (true) {
+            synchronized (mLock) {
+                if (isLoadedFor(catalog)) {
+                    return (mEquipped[ordinal >> 6] & (1L << ordinal)) != 0;
+                }
+            }
+            load(catalog);
+        }
+    }
+
+    static void setEquipped(Catalog catalog, int ordinal, boolean equipped) {
+        synchronized (mLock) {
+            if (!isLoadedFor(catalog)) {
+                discardLoading();
+                return;
+            }
+
+            if (equipped) {
+                mEquipped[ordinal >> 6] |= 1L << ordinal;
+            } else {
+                mEquipped[ordinal >> 6] &= ~(1L << ordinal);
+            }
+        }
+    }
+
+    /**
+     * @return the ordinal of the good's current upgrade or -1 if it has no upgrade.
+     */
+    static int getUpgrade(Catalog catalog, int ordinal) {
+        while (true) {
+            synchronized (mLock) {
+                if (isLoadedFor(catalog)) {
+                    return mUpgrades[ordinal];
+                }
+            }
+            load(catalog);
+        }
+    }
+
+    /**
+     * @return the level of the good's current upgrade or 0 if it has no upgrade.
+     */
+    static int getUpgradeLevel(Catalog catalog, int ordinal) {
+        while (true) {
+            synchronized (mLock) {
+                if (isLoadedFor(catalog)) {
+                    return mUpgradeLevels[ordinal];
+                }
+            }
+            load(catalog);
+        }
+    }
+
+    /**
+     * @param upgradeOrdinal the ordinal of the good's current upgrade or -1 if it has no upgrade.
+     * @param level the level of the good's current upgrade or 0 if it has no upgrade.
+     */
+    static void setUpgrade(Catalog catalog, int ordinal, int upgradeOrdinal, int level) {
+        synchronized (mLock) {
+            if (isLoadedFor(catalog)) {
+                mUpgrades[ordinal] = upgradeOrdinal;
+                mUpgradeLevels[ordinal] = level;
+            } else {
+                discardLoading();
+            }
+        }
+    }
+
+    /**
+     * Fills the arrays for the loaded catalog now unless they're already filled. Does nothing if there's no
+     * catalog yet.
+     */
+    static void preload() {
+        Catalog catalog = StoreInfo.getCatalog();
+        if (catalog.getItemCount() == 0) {
+            return;
+        }
+
+        synchronized (mLock) {
+            if (isLoadedFor(catalog)) {
+                return;
+            }
+        }
+        load(catalog);
+    }
+
+    /**
+     * Drops the arrays. They're filled again from the database the next time they're needed.
+     */
+    static void clear() {
+        synchronized (mLock) {
+            discardLoading();
+        }
+    }
+
+    /** Private functions **/
+
+    private static boolean isLoadedFor(Catalog catalog) {
+        return mLoaded && mCatalogGeneration == catalog.generation;
+    }
+
+    /**
+     * Fills the arrays for the given catalog. The database is read (and decrypted) without holding the lock:
+     * opening it may wait for the warm-up thread, which preloads this state too. Only committed values are read.
+     * The values are only kept if nothing was written or cleared meanwhile (see discardLoading()), otherwise the
+     * caller reads the database again.
+     * A reader that took the catalog just before it was replaced fills the arrays for the older catalog, and the
+     * next reader of the new one fills them again.
+     */
+    private static void load(Catalog catalog) {
+        long generation;
+        synchronized (mLock) {
+            generation = mLoadGeneration;
+        }
+
+        Map<String, String> keyVals = StorageManager.getCommittedInventoryKeyVals();
+
+        synchronized (mLock) {
+            if (generation == mLoadGeneration && !isLoadedFor(catalog)) {
+                fill(catalog, keyVals);
+            }
+        }
+    }
+
+    /**
+     * A write that's committed while the arrays are being filled (or for another catalog than the one they're
+     * filled for) may be missing from the values that were read, so those values are thrown away.
+     */
+    private static void discardLoading() {
+        mLoadGeneration++;
+        mLoaded = false;
+    }
+
+    private static void fill(Catalog catalog, Map<String, String> keyVals) {
+        int count = catalog.getItemCount();
+        mBalances = new int[count];
+        mEquipped = new long[(count + 63) >> 6];
+        mUpgrades = new int[count];
+        mUpgradeLevels = new int[count];
+        Arrays.fill(mUpgrades, -1);
+
+        for (Map.Entry<String, String> entry : keyVals.entrySet()) {
+            String key = entry.getKey();
+
+            String itemId = KeyValDatabase.balanceKeyItemId(key);
+            if (itemId != null) {
+                int ordinal = catalog.ordinalOf(itemId);
+                if (ordinal < 0) {
+                    continue;
+                }
+
+                try {
+                    mBalances[ordinal] = Integer.parseInt(entry.getValue());
+                } catch (NumberFormatException e) {
+                    StoreUtils.LogError(TAG, "Invalid balance for key: " + key);
+                }
+                continue;
+            }
+
+            itemId = KeyValDatabase.equippedKeyItemId(key);
+            if (itemId != null) {
+                int ordinal = catalog.ordinalOf(itemId);
+                if (ordinal >= 0) {
+                    mEquipped[ordinal >> 6] |= 1L << ordinal;
+                }
+                continue;
+            }
+
+            itemId = KeyValDatabase.upgradeKeyItemId(key);
+            if (itemId != null) {
+                int ordinal = catalog.ordinalOf(itemId);
+                if (ordinal < 0 || entry.getValue() == null) {
+                    continue;
+                }
+
+                int upgradeOrdinal = catalog.ordinalOf(entry.getValue());
+                VirtualItem upgrade = upgradeOrdinal >= 0 ? catalog.itemAt(upgradeOrdinal) : null;
+                if (!(upgrade instanceof UpgradeVG)) {
+                    StoreUtils.LogError(TAG, "The current upgrade of " + itemId + " is not an UpgradeVG in StoreInfo: " +
+                            entry.getValue());
+                    continue;
+                }
+
+                mUpgrades[ordinal] = upgradeOrdinal;
+                mUpgradeLevels[ordinal] = catalog.getUpgradeLevel((UpgradeVG) upgrade);
+            }
+        }
+
+        mCatalogGeneration = catalog.generation;
+        mLoaded = true;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA InventoryState";
+
+    private static final Object mLock = new Object();
+
+    private static boolean mLoaded = false;
+    // the generation of the catalog the arrays were filled for.
+    private static int mCatalogGeneration;
+    // goes up on every write the arrays can't take and on every clear(), see discardLoading().
+    private static long mLoadGeneration = 0;
+    private static int[] mBalances;
+    // a bit per ordinal.
+    private static long[] mEquipped;
+    private static int[] mUpgrades;
+    private static int[] mUpgradeLevels;
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.data;
+
+import com.soomla.store.StoreUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A storage backend that appends every mutation to a memory-mapped log file and keeps the live key-val
+ * pairs in memory. A write is a memory copy into the mapped file (it survives an app crash as soon as
+ * it's made), batches are also forced to the disk.
+ *
+ * The file is a header (MAGIC, FILE_VERSION) followed by records:
+ * [int payload length][int CRC32 of the payload][payload: int op count, then per op: byte op, UTF key and,
+ * for OP_PUT, int val length and the val bytes]. A record holds all the writes of a batch so a batch is
+ * replayed either completely or not at all.
+ *
+ * On open the log is replayed into memory. Replay stops at the first record that is truncated or whose
+ * checksum doesn't match (a write that was torn by a crash) and new records overwrite it.
+ * Once the log passes the compaction threshold and is mostly dead records, it's rewritten on a background
+ * thread with only the live key-val pairs.
+ *
+ * Keys and values reach the backend already obfuscated by the storage classes so the log holds encrypted
+ * data only.
+ */
+public class JournalStorageBackend implements IStorageBackend {
+
+    /**
+     * @param file the log file. It's created if it doesn't exist.
+     */
+    public JournalStorageBackend(File file) {
+        this(file, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * @param file the log file. It's created if it doesn't exist.
+     * @param compactThreshold the log size (in bytes) from which it may be compacted.
+     */
+    public JournalStorageBackend(File file, int compactThreshold) {
+        mFile = file;
+        mCompactFile = new File(file.getPath() + ".compact");
+        mCompactThreshold = compactThreshold;
+
+        try {
+            open(mFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't open " + mFile, e);
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        return mRows.get(key);
+    }
+
+    @Override
+    public synchronized void put(String key, byte[] val) {
+        HashMap<String, byte[]> writes = new HashMap<String, byte[]>(1);
+        writes.put(key, val);
+        write(writes, false);
+    }
+
+    @Override
+    public synchronized void delete(String key) {
+        if (!mRows.containsKey(key)) {
+            return;
+        }
+        HashMap<String, byte[]> writes = new HashMap<String, byte[]>(1);
+        writes.put(key, null);
+        write(writes, false);
+    }
+
+    @Override
+    public synchronized void batch(Map<String, byte[]> writes) {
+        write(writes, true);
+    }
+
+    @Override
+    public synchronized HashMap<String, byte[]> scan() {
+        return new HashMap<String, byte[]>(mRows);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mChannel == null) {
+            return;
+        }
+
+        mBuffer.force();
+        closeLog(mChannel, mBuffer);
+        mChannel = null;
+        mBuffer = null;
+    }
+
+    /** Private functions **/
+
+    private void write(Map<String, byte[]> writes, boolean force) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        byte[] payload = encode(writes);
+        try {
+            append(payload);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't append to " + mFile, e);
+        }
+        if (force) {
+            mBuffer.force();
+        }
+
+        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+            apply(entry.getKey(), entry.getValue());
+        }
+
+        if (mSinceSnapshot != null) {
+            mSinceSnapshot.add(payload);
+        } else if (mPosition > mCompactThreshold && mPosition > 2 * mLiveBytes) {
+            startCompaction();
+        }
+    }
+
+    private void apply(String key, byte[] val) {
+        byte[] old = val == null ? mRows.remove(key) : mRows.put(key, val);
+        if (old != null) {
+            mLiveBytes -= entrySize(key, old);
+        }
+        if (val != null) {
+            mLiveBytes += entrySize(key, val);
+        }
+    }
+
+    /**
+     * Maps the given log file and replays it into mRows (which should be empty).
+     */
+    private void open(File logFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        mChannel = file.getChannel();
+
+        boolean isNew = file.length() < HEADER_SIZE;
+        map((int) Math.max(file.length(), INITIAL_SIZE));
+
+        if (isNew) {
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, FILE_VERSION);
+            mBuffer.force();
+        } else if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != FILE_VERSION) {
+            throw new IOException("Not a journal file or an unknown version");
+        }
+
+        replay();
+    }
+
+    private void map(int capacity) throws IOException {
+        MappedByteBuffer old = mBuffer;
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (old != null) {
+            // everything that was written through the old mapping is in the file (and the new mapping).
+            unmap(old);
+        }
+    }
+
+    private void replay() {
+        int pos = HEADER_SIZE;
+        boolean torn = false;
+        CRC32 crc = new CRC32();
+
+        while (pos + RECORD_HEADER_SIZE <= mBuffer.capacity()) {
+            int length = mBuffer.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || pos + RECORD_HEADER_SIZE + length > mBuffer.capacity()) {
+                torn = true;
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(pos + RECORD_HEADER_SIZE);
+            record.get(payload);
+
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != mBuffer.getInt(pos + 4)) {
+                torn = true;
+                break;
+            }
+
+            decode(payload);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+
+        mPosition = pos;
+        if (torn) {
+            StoreUtils.LogError(TAG, "Dropping a torn record at offset " + pos + " of " + mFile);
+            for (int i = pos; i < mBuffer.capacity(); i++) {
+                mBuffer.put(i, (byte) 0);
+            }
+            mBuffer.force();
+        }
+    }
+
+    private void append(byte[] payload) throws IOException {
+        int needed = mPosition + RECORD_HEADER_SIZE + payload.length;
+        if (needed > mBuffer.capacity()) {
+            int capacity = mBuffer.capacity();
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            map(capacity);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        // the length goes in last so a record is never seen before it's complete.
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(mPosition + RECORD_HEADER_SIZE);
+        record.put(payload);
+        mBuffer.putInt(mPosition + 4, (int) crc.getValue());
+        mBuffer.putInt(mPosition, payload.length);
+
+        mPosition = needed;
+    }
+
+    private static byte[] encode(Map<String, byte[]> writes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(writes.size());
+            for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+                byte[] val = entry.getValue();
+                out.writeByte(val == null ? OP_DELETE : OP_PUT);
+                out.writeUTF(entry.getKey());
+                if (val != null) {
+                    out.writeInt(val.length);
+                    out.write(val);
+                }
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // can't happen with a ByteArrayOutputStream.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void decode(byte[] payload) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte op = in.readByte();
+                String key = in.readUTF();
+                byte[] val = null;
+                if (op == OP_PUT) {
+                    val = new byte[in.readInt()];
+                    in.readFully(val);
+                }
+                apply(key, val);
+            }
+        } catch (IOException e) {
+            // the checksum matched so this is a bug rather than a torn write.
+            throw new RuntimeException("Invalid record in " + mFile, e);
+        }
+    }
+
+    /**
+     * Writes the live key-val pairs to a new log on a background thread. The writes made meanwhile are
+     * still appended to the current log and are also kept in mSinceSnapshot so they can be added to the new
+     * log before it replaces the current one.
+     */
+    private void startCompaction() {
+        final HashMap<String, byte[]> snapshot = new HashMap<String, byte[]>(mRows);
+        mSinceSnapshot = new ArrayList<byte[]>();
+
+        Thread compaction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeCompactLog(snapshot);
+                    finishCompaction();
+                } catch (IOException e) {
+                    StoreUtils.LogError(TAG, "Couldn't compact " + mFile + ": " + e.getMessage());
+                    abortCompaction();
+                } catch (RuntimeException e) {
+                    StoreUtils.LogError(TAG, "Couldn't compact " + mFile + ": " + e.getMessage());
+                    abortCompaction();
+                }
+            }
+        }, "SOOMLA JournalStorageBackend compaction");
+        compaction.setPriority(Thread.MIN_PRIORITY);
+        compaction.start();
+    }
+
+    private void writeCompactLog(HashMap<String, byte[]> snapshot) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(mCompactFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+
+            HashMap<String, byte[]> chunk = new HashMap<String, byte[]>();
+            for (Map.Entry<String, byte[]> entry : snapshot.entrySet()) {
+                chunk.put(entry.getKey(), entry.getValue());
+                if (chunk.size() == COMPACT_RECORD_OPS) {
+                    writeRecord(out, encode(chunk));
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                writeRecord(out, encode(chunk));
+            }
+
+            out.flush();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    private synchronized void finishCompaction() throws IOException {
+        if (mChannel == null) {
+            // closed meanwhile.
+            abortCompaction();
+            return;
+        }
+
+        FileOutputStream fileOut = new FileOutputStream(mCompactFile, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            for (byte[] payload : mSinceSnapshot) {
+                writeRecord(out, payload);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        // the new log is opened (and replayed) before it replaces the current one. the current log and its
+        // state are only dropped once that worked, otherwise they're restored and stay in use.
+        FileChannel oldChannel = mChannel;
+        MappedByteBuffer oldBuffer = mBuffer;
+        int oldPosition = mPosition;
+        HashMap<String, byte[]> oldRows = mRows;
+        long oldLiveBytes = mLiveBytes;
+
+        mChannel = null;
+        mBuffer = null;
+        mRows = new HashMap<String, byte[]>();
+        mLiveBytes = 0;
+        boolean swapped = false;
+        try {
+            open(mCompactFile);
+            // the new log stays mapped through the rename.
+            if (!mCompactFile.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + mCompactFile + " to " + mFile);
+            }
+            swapped = true;
+        } finally {
+            if (!swapped) {
+                closeLog(mChannel, mBuffer);
+                mChannel = oldChannel;
+                mBuffer = oldBuffer;
+                mPosition = oldPosition;
+                mRows = oldRows;
+                mLiveBytes = oldLiveBytes;
+            }
+        }
+
+        mSinceSnapshot = null;
+        closeLog(oldChannel, oldBuffer);
+
+        StoreUtils.LogDebug(TAG, "Compacted " + mFile + " from " + oldPosition + " to " + mPosition + " bytes.");
+    }
+
+    private synchronized void abortCompaction() {
+        mSinceSnapshot = null;
+        mCompactFile.delete();
+    }
+
+    private void closeLog(FileChannel channel, MappedByteBuffer buffer) {
+        if (buffer != null) {
+            unmap(buffer);
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                StoreUtils.LogError(TAG, "Couldn't close " + mFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Releases the given mapping now rather than whenever it's garbage collected. There's no public API for it
+     * so it's done by reflection (Android's DirectByteBuffer.free() or the JDK's cleaner) and skipped if neither
+     * is there. The buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                Method free = buffer.getClass().getMethod("free");
+                free.setAccessible(true);
+                free.invoke(buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    Method clean = cleaner.getClass().getMethod("clean");
+                    clean.setAccessible(true);
+                    clean.invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            // left to the garbage collector.
+            StoreUtils.LogDebug(TAG, "Couldn't unmap a buffer: " + e);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    private static int entrySize(String key, byte[] val) {
+        return 1 + 2 + key.length() + 4 + val.length;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG                       = "SOOMLA JournalStorageBackend";
+    private static final int    MAGIC                     = 0x534d4c4a; // "SMLJ"
+    private static final int    FILE_VERSION              = 1;
+    private static final int    HEADER_SIZE               = 8;
+    private static final int    RECORD_HEADER_SIZE        = 8;
+    private static final int    INITIAL_SIZE              = 64 * 1024;
+    private static final int    DEFAULT_COMPACT_THRESHOLD = 1024 * 1024;
+    private static final int    COMPACT_RECORD_OPS        = 256;
+    private static final byte   OP_PUT                    = 1;
+    private static final byte   OP_DELETE                 = 2;
+
+    private final File mFile;
+    private final File mCompactFile;
+    private final int  mCompactThreshold;
+
+    private FileChannel      mChannel;
+    private MappedByteBuffer mBuffer;
+    // where the next record goes.
+    private int              mPosition;
+
+    private HashMap<String, byte[]> mRows = new HashMap<String, byte[]>();
+    // roughly the size the live key-val pairs take in the log.
+    private long mLiveBytes = 0;
+
+    // the records appended since the compaction's snapshot, null when not compacting.
+    private ArrayList<byte[]> mSinceSnapshot;
+}
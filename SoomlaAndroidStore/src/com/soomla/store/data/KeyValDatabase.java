@@ -15,40 +15,59 @@
  */
 package com.soomla.store.data;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import com.soomla.billing.util.AESObfuscator;
 import com.soomla.store.StoreConfig;
+import com.soomla.store.StoreUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The KeyValDatabase provides basic key-value store above SQLite.
+ * The KeyValDatabase provides basic key-value store above an {@link IStorageBackend} (SQLite by default).
+ * It keeps the preloaded rows, the write-behind writes and the per-thread transactions so the backends
+ * don't have to.
  */
 public class KeyValDatabase {
 
     public KeyValDatabase(Context context) {
+        this(new SQLiteStorageBackend(context));
+    }
 
-        if (StoreConfig.DB_DELETE){
-            context.deleteDatabase(DATABASE_NAME);
-        }
-
-        mDatabaseHelper = new DatabaseHelper(context);
-        mStoreDB = mDatabaseHelper.getWritableDatabase();
+    public KeyValDatabase(IStorageBackend backend) {
+        mBackend = backend;
     }
 
     /**
      * Closes the database.
      */
-    public synchronized void close() {
-        mDatabaseHelper.close();
+    public void close() {
+        mLock.lock();
+        try {
+            flush();
+            if (mWriterThread != null) {
+                mWriterThread.quit();
+                mWriterThread = null;
+            }
+
+            mBackend.close();
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
-     * Deletes the database completely !
+     * Deletes the (SQLite) database completely !
      */
     public void purgeDatabase(Context context) {
-        context.deleteDatabase(DATABASE_NAME);
+        SQLiteStorageBackend.purgeDatabase(context);
     }
 
     /**
@@ -56,14 +75,33 @@ public class KeyValDatabase {
      * @param key the key of the key-val pair.
      * @param val the val of the key-val pair.
      */
-    public synchronized void setKeyVal(String key, String val) {
-        ContentValues values = new ContentValues();
-        values.put(KEYVAL_COLUMN_VAL, val);
+    public void setKeyVal(String key, byte[] val) {
+        if (val == null) {
+            // a null value is the same as no value.
+            deleteKeyVal(key);
+            return;
+        }
 
-        int affected = mStoreDB.update(KEYVAL_TABLE_NAME, values, KEYVAL_COLUMN_KEY + "='" + key + "'", null);
-        if (affected == 0){
-            values.put(KEYVAL_COLUMN_KEY, key);
-            mStoreDB.replace(KEYVAL_TABLE_NAME, null, values);
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            transaction.writes.put(key, val);
+            return;
+        }
+
+        mLock.lock();
+        try {
+            if (mWriteBehind) {
+                mPendingWrites.put(key, val);
+                scheduleFlush();
+            } else {
+                mBackend.put(key, val);
+            }
+
+            if (mRows != null) {
+                mRows.put(key, val);
+            }
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -72,51 +110,362 @@ public class KeyValDatabase {
      * @param key the key of the key-val pair.
      * @return a value for the given key.
      */
-    public synchronized String getKeyVal(String key) {
-        Cursor cursor = mStoreDB.query(KEYVAL_TABLE_NAME, KEYVAL_COLUMNS, KEYVAL_COLUMN_KEY + "='" + key + "'",
-                null, null, null, null);
- 
-        if (cursor != null && cursor.moveToNext()) {
-            int valColIdx = cursor.getColumnIndexOrThrow(KEYVAL_COLUMN_VAL);
-            String ret = cursor.getString(valColIdx);
-            cursor.close();
-            return ret;
-        }
-        
-        if(cursor != null) {
-        	cursor.close();
-        }
-        
-        return null;
+    public byte[] getKeyVal(String key) {
+        Transaction transaction = mTransaction.get();
+        if (transaction != null && transaction.writes.containsKey(key)) {
+            return transaction.writes.get(key);
+        }
+
+        mLock.lock();
+        try {
+            if (mPendingWrites.containsKey(key)) {
+                return mPendingWrites.get(key);
+            }
+
+            if (mRows != null) {
+                return mRows.get(key);
+            }
+
+            return mBackend.get(key);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public void deleteKeyVal(String key) {
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            transaction.writes.put(key, null);
+            return;
+        }
+
+        mLock.lock();
+        try {
+            if (mWriteBehind) {
+                mPendingWrites.put(key, null);
+                scheduleFlush();
+            } else {
+                mBackend.delete(key);
+            }
+
+            if (mRows != null) {
+                mRows.remove(key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the whole backend with one scan and keeps all the rows in memory.
+     * From then on {@link #getKeyVal(String)} is answered from memory (the writes keep it up to date),
+     * so no query is issued per key.
+     */
+    public void preload() {
+        mLock.lock();
+        try {
+            if (mRows == null) {
+                mRows = mBackend.scan();
+                applyWrites(mRows, mPendingWrites);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Fetches all the key-val pairs in the database. Served from memory if the database was preloaded,
+     * otherwise with one backend scan.
+     * @return a map of all the keys to their values.
+     */
+    public HashMap<String, byte[]> getAllKeyVals() {
+        HashMap<String, byte[]> rows = getAllCommittedKeyVals();
+
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            applyWrites(rows, transaction.writes);
+        }
+        return rows;
+    }
+
+    /**
+     * Same as {@link #getAllKeyVals()} but without the uncommitted writes of the current thread's transaction.
+     * @return a map of all the keys to their committed values.
+     */
+    public HashMap<String, byte[]> getAllCommittedKeyVals() {
+        HashMap<String, byte[]> rows;
+
+        mLock.lock();
+        try {
+            if (mRows != null) {
+                rows = new HashMap<String, byte[]>(mRows);
+            } else {
+                rows = mBackend.scan();
+                applyWrites(rows, mPendingWrites);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return rows;
+    }
+
+    /**
+     * Turns write-behind on or off. With write-behind, writes land in memory at once and a background
+     * writer flushes them to the database in one transaction shortly after (see StoreConfig.WRITE_BEHIND_DELAY_MS).
+     * Repeated writes to the same key are coalesced so only the last value is written.
+     * Call {@link #flush()} when the pending writes must be durable.
+     * Turning write-behind off flushes the pending writes.
+     * @param writeBehind true to turn write-behind on.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        mLock.lock();
+        try {
+            mWriteBehind = writeBehind;
+            if (!writeBehind) {
+                flush();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Writes all the pending (write-behind) writes to the database in one transaction.
+     * Returns immediately if there are none.
+     */
+    public void flush() {
+        mLock.lock();
+        try {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+
+            mBackend.batch(mPendingWrites);
+            mPendingWrites.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+
+        if (mWriterThread == null) {
+            mWriterThread = new HandlerThread("SOOMLA KeyValDatabase writer", Process.THREAD_PRIORITY_BACKGROUND);
+            mWriterThread.start();
+            mWriterHandler = new Handler(mWriterThread.getLooper());
+        }
+
+        mFlushScheduled = true;
+        mWriterHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mLock.lock();
+                try {
+                    mFlushScheduled = false;
+                    flush();
+                } catch (RuntimeException e) {
+                    // the writes stay pending and will be retried on the next flush.
+                    StoreUtils.LogError(TAG, "Couldn't flush pending writes: " + e.getMessage());
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        }, StoreConfig.WRITE_BEHIND_DELAY_MS);
+    }
+
+    private static void applyWrites(HashMap<String, byte[]> rows, Map<String, byte[]> writes) {
+        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+            if (entry.getValue() == null) {
+                rows.remove(entry.getKey());
+            } else {
+                rows.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Begins a transaction. All the writes made by the current thread until the matching
+     * {@link #endTransaction()} are kept aside (the current thread reads its own writes) and are committed
+     * together, in one journal sync, when the outermost transaction ends. If the transaction (or one of its
+     * nested transactions) wasn't marked successful, the writes are dropped.
+     *
+     * Use {@link StorageManager#runInTransaction(Runnable)} instead of calling this directly.
+     */
+    public void beginTransaction() {
+        Transaction transaction = mTransaction.get();
+        if (transaction == null) {
+            transaction = new Transaction();
+            mTransaction.set(transaction);
+        }
+        transaction.depth++;
     }
 
-    public synchronized void deleteKeyVal(String key) {
-        mStoreDB.delete(KEYVAL_TABLE_NAME, KEYVAL_COLUMN_KEY + "=?", new String[] { key });
+    /**
+     * @return true if the current thread is in a transaction.
+     */
+    public boolean inTransaction() {
+        return mTransaction.get() != null;
     }
 
-    private class DatabaseHelper extends SQLiteOpenHelper{
+    /**
+     * @return true if the current thread's transaction wrote (or deleted) the given key and didn't commit it yet.
+     */
+    public boolean hasUncommittedWrite(String key) {
+        Transaction transaction = mTransaction.get();
+        return transaction != null && transaction.writes.containsKey(key);
+    }
 
-        public DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, 1);
+    /**
+     * Runs an update of a cache of the database's values once the write it mirrors is committed: right away
+     * outside a transaction, or when the current thread's transaction commits (under the database's lock, right
+     * after its writes land). It's dropped if the transaction is rolled back, so no other thread ever sees an
+     * uncommitted value in a cache.
+     * @param cacheUpdate the update. It must not read the database.
+     */
+    public void runOnCommit(Runnable cacheUpdate) {
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            transaction.onCommit.add(cacheUpdate);
+            return;
         }
 
-        @Override
-        public void onCreate(SQLiteDatabase sqLiteDatabase) {
-            if (!sqLiteDatabase.isReadOnly()){
-                sqLiteDatabase.execSQL("PRAGMA foreign_key=ON");
+        cacheUpdate.run();
+    }
+
+    /**
+     * Runs the given action when the current thread's outermost transaction ends, whether it's committed or
+     * rolled back (after the cache updates of {@link #runOnCommit(Runnable)}), or right away outside a
+     * transaction. The actions run in the reverse order they were added. Used to hold locks until the writes
+     * made under them are committed.
+     * @param action the action. It must not read or write the database.
+     */
+    public void runOnEnd(Runnable action) {
+        Transaction transaction = mTransaction.get();
+        if (transaction != null) {
+            transaction.onEnd.add(action);
+            return;
+        }
+
+        action.run();
+    }
+
+    /**
+     * Marks the current transaction as successful. Its writes will be committed by {@link #endTransaction()}.
+     */
+    public void setTransactionSuccessful() {
+        mTransaction.get().successful = true;
+    }
+
+    /**
+     * Ends the current transaction.
+     * @return false if this was the outermost transaction and its writes were rolled back, true otherwise.
+     */
+    public boolean endTransaction() {
+        Transaction transaction = mTransaction.get();
+        if (!transaction.successful) {
+            transaction.rolledBack = true;
+        }
+        transaction.successful = false;
+        transaction.depth--;
+
+        if (transaction.depth > 0) {
+            return true;
+        }
+
+        mTransaction.remove();
+        try {
+            if (transaction.rolledBack || (transaction.writes.isEmpty() && transaction.onCommit.isEmpty())) {
+                return !transaction.rolledBack;
             }
 
-            sqLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + KEYVAL_TABLE_NAME + "(" +
-                    KEYVAL_COLUMN_KEY + " TEXT PRIMARY KEY, " +
-                    KEYVAL_COLUMN_VAL + " TEXT)");
+            commit(transaction);
+            return true;
+        } finally {
+            for (int i = transaction.onEnd.size() - 1; i >= 0; i--) {
+                transaction.onEnd.get(i).run();
+            }
         }
+    }
+
+    private void commit(Transaction transaction) {
+        mLock.lock();
+        try {
+            if (!transaction.writes.isEmpty()) {
+                if (mWriteBehind) {
+                    // the pending writes are flushed in one transaction so the batch stays atomic.
+                    mPendingWrites.putAll(transaction.writes);
+                    scheduleFlush();
+                } else {
+                    mBackend.batch(transaction.writes);
+                }
+
+                if (mRows != null) {
+                    applyWrites(mRows, transaction.writes);
+                }
+            }
 
-        @Override
-        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-            // Nothing to do here ...
+            for (Runnable cacheUpdate : transaction.onCommit) {
+                cacheUpdate.run();
+            }
+        } finally {
+            mLock.unlock();
         }
     }
 
+    /**
+     * The writes of the current thread's transaction.
+     */
+    private static class Transaction {
+        int     depth       = 0;
+        boolean successful  = false;
+        boolean rolledBack  = false;
+        final LinkedHashMap<String, byte[]> writes = new LinkedHashMap<String, byte[]>();
+        // the cache updates that mirror the writes (see runOnCommit()).
+        final ArrayList<Runnable> onCommit = new ArrayList<Runnable>();
+        // what runs once it's committed or rolled back (see runOnEnd()).
+        final ArrayList<Runnable> onEnd = new ArrayList<Runnable>();
+    }
+
+    /**
+     * Converts a value of schema v1 (the Base64 text of {@link AESObfuscator#obfuscateString(String)}) to the
+     * binary layout of schema v2. Balances become binary ints and everything else binary strings.
+     * Empty values (flags) stay empty.
+     * @param key the obfuscated key of the value.
+     * @param val the v1 value.
+     * @return the v2 value.
+     */
+    static byte[] convertV1Value(String key, String val) {
+        if (val == null) {
+            return null;
+        }
+        if (val.length() == 0) {
+            return new byte[0];
+        }
+
+        AESObfuscator obfuscator = StorageManager.getAESObfuscator();
+        try {
+            String plainVal = obfuscator.unobfuscateToString(val);
+            String plainKey = obfuscator.unobfuscateToString(key);
+            if (plainKey != null && balanceKeyItemId(plainKey) != null) {
+                return obfuscator.obfuscateToBytes(Integer.parseInt(plainVal));
+            }
+            return obfuscator.obfuscateToBytes(plainVal);
+        } catch (AESObfuscator.ValidationException e) {
+            StoreUtils.LogError(TAG, "Couldn't convert the value of key " + key + ": " + e.getMessage());
+        } catch (NumberFormatException e) {
+            StoreUtils.LogError(TAG, "Couldn't convert the value of key " + key + ": " + e.getMessage());
+        }
+
+        // the value couldn't be read before either. keep its bytes as they are so nothing is lost.
+        try {
+            return val.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("Invalid environment", e);
+        }
+    }
 
     /** SOOMLA keys **/
 
@@ -136,6 +485,42 @@ public class KeyValDatabase {
         return "currency." + itemId + ".balance";
     }
 
+    /**
+     * Extracts the itemId out of a good or currency balance key.
+     * @param key a plain key.
+     * @return the itemId or null if the given key is not a balance key.
+     */
+    public static String balanceKeyItemId(String key) {
+        String itemId = keyItemId(key, "good.", ".balance");
+        return itemId != null ? itemId : keyItemId(key, "currency.", ".balance");
+    }
+
+    /**
+     * Extracts the itemId out of a good's equipped key.
+     * @param key a plain key.
+     * @return the itemId or null if the given key is not an equipped key.
+     */
+    public static String equippedKeyItemId(String key) {
+        return keyItemId(key, "good.", ".equipped");
+    }
+
+    /**
+     * Extracts the itemId out of a good's current upgrade key.
+     * @param key a plain key.
+     * @return the itemId or null if the given key is not a current upgrade key.
+     */
+    public static String upgradeKeyItemId(String key) {
+        return keyItemId(key, "good.", ".currentUpgrade");
+    }
+
+    /**
+     * @param key a plain key.
+     * @return true if the given key is a balance, equipped or current upgrade key (the inventory).
+     */
+    public static boolean isInventoryKey(String key) {
+        return balanceKeyItemId(key) != null || equippedKeyItemId(key) != null || upgradeKeyItemId(key) != null;
+    }
+
     public static String keyNonConsExists(String productId) {
         return "nonconsumable." + productId + ".exists";
     }
@@ -144,25 +529,40 @@ public class KeyValDatabase {
         return "meta.storeinfo";
     }
 
+    public static String keyMetaStoreInfoStamp() {
+        return "meta.storeinfo.stamp";
+    }
+
     public static String keyMetaStorefrontInfo() {
         return "meta.storefrontinfo";
     }
 
-
-    // General key-value storage
-    private static final String KEYVAL_TABLE_NAME = "kv_store";
-    public static final String KEYVAL_COLUMN_KEY = "key";
-    public static final String KEYVAL_COLUMN_VAL = "val";
-    private static final String[] KEYVAL_COLUMNS = {
-            KEYVAL_COLUMN_KEY, KEYVAL_COLUMN_VAL
-    };
+    private static String keyItemId(String key, String prefix, String suffix) {
+        if (key.startsWith(prefix) && key.endsWith(suffix) && key.length() > prefix.length() + suffix.length()) {
+            return key.substring(prefix.length(), key.length() - suffix.length());
+        }
+        return null;
+    }
 
 
     /** Private Members**/
 
     private static final String TAG            = "KeyValDatabase";
-    private static final String DATABASE_NAME  = "store.kv.db";
 
-    private SQLiteDatabase mStoreDB;
-    private DatabaseHelper mDatabaseHelper;
+    // held for a single operation only (never while calling out of this class).
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final IStorageBackend mBackend;
+
+    // all the rows of the table after preload(), null before.
+    private HashMap<String, byte[]> mRows;
+
+    // write-behind: key -> last written value (null for a delete), in write order.
+    private final LinkedHashMap<String, byte[]> mPendingWrites = new LinkedHashMap<String, byte[]>();
+    private boolean         mWriteBehind    = false;
+    private boolean         mFlushScheduled = false;
+    private HandlerThread   mWriterThread;
+    private Handler         mWriterHandler;
+
+    private final ThreadLocal<Transaction> mTransaction = new ThreadLocal<Transaction>();
 }
@@ -16,7 +16,6 @@
 
 package com.soomla.store.data;
 
-import android.text.TextUtils;
 import com.soomla.billing.util.AESObfuscator;
 import com.soomla.store.StoreUtils;
 
@@ -39,15 +38,20 @@ public class KeyValueStorage {
     public String getValue(String key) {
         StoreUtils.LogDebug(TAG, "trying to fetch a value for key: " + key);
 
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
-        String val = StorageManager.getDatabase().getKeyVal(key);
+        byte[] obfuscated = StorageManager.getDatabase().getKeyVal(key);
+        if (obfuscated == null) {
+            return null;
+        }
 
-        if (val != null && !TextUtils.isEmpty(val)) {
+        String val = "";
+        if (obfuscated.length > 0) {
             try {
-                val = StorageManager.getAESObfuscator().unobfuscateToString(val);
+                val = StorageManager.getAESObfuscator().unobfuscateBytesToString(obfuscated);
             } catch (AESObfuscator.ValidationException e) {
                 StoreUtils.LogError(TAG, e.getMessage());
+                val = null;
             }
 
             StoreUtils.LogDebug(TAG, "the fetched value is " + val);
@@ -63,10 +67,9 @@ public class KeyValueStorage {
     public void setValue(String key, String val) {
         StoreUtils.LogDebug(TAG, "setting " + val + " for key: " + key);
 
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
-        val = StorageManager.getAESObfuscator().obfuscateString(val);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
-        StorageManager.getDatabase().setKeyVal(key, val);
+        StorageManager.getDatabase().setKeyVal(key, StorageManager.getAESObfuscator().obfuscateToBytes(val));
     }
 
     /**
@@ -76,7 +79,7 @@ public class KeyValueStorage {
     public void deleteKeyValue(String key) {
         StoreUtils.LogDebug(TAG, "deleting " + key);
 
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
         StorageManager.getDatabase().deleteKeyVal(key);
     }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A storage backend that keeps the key-val pairs in memory only. Nothing survives the process.
+ * Use it for tests and for load-testing the storage layer without a device.
+ */
+public class MemoryStorageBackend implements IStorageBackend {
+
+    @Override
+    public byte[] get(String key) {
+        return mRows.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] val) {
+        if (val == null) {
+            mRows.remove(key);
+        } else {
+            mRows.put(key, val);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        mRows.remove(key);
+    }
+
+    @Override
+    public void batch(Map<String, byte[]> writes) {
+        for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+            if (entry.getValue() == null) {
+                mRows.remove(entry.getKey());
+            } else {
+                mRows.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public HashMap<String, byte[]> scan() {
+        return new HashMap<String, byte[]>(mRows);
+    }
+
+    @Override
+    public void close() {
+    }
+
+
+    /** Private Members **/
+
+    private final HashMap<String, byte[]> mRows = new HashMap<String, byte[]>();
+}
@@ -43,9 +43,9 @@ public class NonConsumableItemsStorage {
 
         String itemId = nonConsumableItem.getItemId();
         String key = KeyValDatabase.keyNonConsExists(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
-        String val = StorageManager.getDatabase().getKeyVal(key);
+        byte[] val = StorageManager.getDatabase().getKeyVal(key);
 
         return val != null;
     }
@@ -59,8 +59,8 @@ public class NonConsumableItemsStorage {
 
         String itemId = nonConsumableItem.getItemId();
         String key = KeyValDatabase.keyNonConsExists(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
-        StorageManager.getDatabase().setKeyVal(key, "");
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
+        StorageManager.getDatabase().setKeyVal(key, new byte[0]);
     }
 
     /**
@@ -72,7 +72,7 @@ public class NonConsumableItemsStorage {
 
         String itemId = nonConsumableItem.getItemId();
         String key = KeyValDatabase.keyNonConsExists(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
         StorageManager.getDatabase().deleteKeyVal(key);
     }
 
@@ -13,9 +13,19 @@ import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SharedPreferences that encrypt every value. All the values are stored as encrypted strings (booleans, ints,
+ * floats and longs are put as their string form) so getAll() returns every value as a String, and skips the
+ * entries of the wrapped preferences that aren't strings (they weren't written through this class).
+ */
 public class ObscuredSharedPreferences implements SharedPreferences {
     protected static final String UTF8 = "utf-8";
 
@@ -24,6 +34,7 @@ public class ObscuredSharedPreferences implements SharedPreferences {
 
     public ObscuredSharedPreferences(SharedPreferences delegate) {
         this.delegate = delegate;
+        this.mCache = cacheFor(delegate);
     }
 
     public class Editor implements SharedPreferences.Editor {
@@ -36,30 +47,35 @@ public class ObscuredSharedPreferences implements SharedPreferences {
         @Override
         public Editor putBoolean(String key, boolean value) {
             delegate.putString(key, encrypt(Boolean.toString(value)));
+            mTouchedKeys.add(key);
             return this;
         }
 
         @Override
         public Editor putFloat(String key, float value) {
             delegate.putString(key, encrypt(Float.toString(value)));
+            mTouchedKeys.add(key);
             return this;
         }
 
         @Override
         public Editor putInt(String key, int value) {
             delegate.putString(key, encrypt(Integer.toString(value)));
+            mTouchedKeys.add(key);
             return this;
         }
 
         @Override
         public Editor putLong(String key, long value) {
             delegate.putString(key, encrypt(Long.toString(value)));
+            mTouchedKeys.add(key);
             return this;
         }
 
         @Override
         public Editor putString(String key, String value) {
             delegate.putString(key, encrypt(value));
+            mTouchedKeys.add(key);
             return this;
         }
 
@@ -71,24 +87,48 @@ public class ObscuredSharedPreferences implements SharedPreferences {
         @Override
         public void apply() {
             delegate.apply();
+            invalidateCache();
         }
 
         @Override
         public Editor clear() {
             delegate.clear();
+            mCleared = true;
             return this;
         }
 
         @Override
         public boolean commit() {
-            return delegate.commit();
+            boolean result = delegate.commit();
+            invalidateCache();
+            return result;
         }
 
         @Override
         public Editor remove(String s) {
             delegate.remove(s);
+            mTouchedKeys.add(s);
             return this;
         }
+
+        /**
+         * The change listener isn't called for clear() and may be called later than the write lands
+         * so the editor drops the values it changed itself.
+         */
+        private void invalidateCache() {
+            if (mCleared) {
+                mCache.invalidateAll();
+            } else {
+                for (String key : mTouchedKeys) {
+                    mCache.invalidate(key);
+                }
+            }
+            mTouchedKeys.clear();
+            mCleared = false;
+        }
+
+        private final HashSet<String> mTouchedKeys = new HashSet<String>();
+        private boolean mCleared = false;
     }
 
     public Editor edit() {
@@ -96,39 +136,67 @@ public class ObscuredSharedPreferences implements SharedPreferences {
     }
 
 
+    /**
+     * Decrypts all the values that aren't in the decrypted-value cache yet, in one pass. They're all kept in
+     * the cache so this is also the way to preload it.
+     * @return the decrypted values (as strings) of all the keys whose values are strings.
+     */
     @Override
     public Map<String, ?> getAll() {
-        throw new UnsupportedOperationException(); // left as an exercise to the reader
+        long generation = mCache.generation();
+        HashMap<String, String> all = new HashMap<String, String>();
+
+        for (Map.Entry<String, ?> entry : delegate.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+
+            String value = mCache.values.get(entry.getKey());
+            if (value != null) {
+                all.put(entry.getKey(), value);
+                continue;
+            }
+
+            try {
+                value = decrypt((String) entry.getValue());
+                all.put(entry.getKey(), value);
+                mCache.put(entry.getKey(), value, generation);
+            } catch (RuntimeException e) {
+                StoreUtils.LogError(TAG, "Couldn't decrypt the value of " + entry.getKey());
+            }
+        }
+
+        return all;
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        final String v = delegate.getString(key, null);
-        return v!=null ? Boolean.parseBoolean(decrypt(v)) : defValue;
+        final String v = getDecrypted(key);
+        return v!=null ? Boolean.parseBoolean(v) : defValue;
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        final String v = delegate.getString(key, null);
-        return v!=null ? Float.parseFloat(decrypt(v)) : defValue;
+        final String v = getDecrypted(key);
+        return v!=null ? Float.parseFloat(v) : defValue;
     }
 
     @Override
     public int getInt(String key, int defValue) {
-        final String v = delegate.getString(key, null);
-        return v!=null ? Integer.parseInt(decrypt(v)) : defValue;
+        final String v = getDecrypted(key);
+        return v!=null ? Integer.parseInt(v) : defValue;
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        final String v = delegate.getString(key, null);
-        return v!=null ? Long.parseLong(decrypt(v)) : defValue;
+        final String v = getDecrypted(key);
+        return v!=null ? Long.parseLong(v) : defValue;
     }
 
     @Override
     public String getString(String key, String defValue) {
-        final String v = delegate.getString(key, null);
-        return v != null ? decrypt(v) : defValue;
+        final String v = getDecrypted(key);
+        return v != null ? v : defValue;
     }
 
     @Override
@@ -154,16 +222,85 @@ public class ObscuredSharedPreferences implements SharedPreferences {
 
 
 
+    private String getDecrypted(String key) {
+        String value = mCache.values.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        long generation = mCache.generation();
+        final String v = delegate.getString(key, null);
+        if (v == null) {
+            return null;
+        }
+
+        value = decrypt(v);
+        mCache.put(key, value, generation);
+        return value;
+    }
+
+    private static DecryptedCache cacheFor(SharedPreferences delegate) {
+        synchronized (mCaches) {
+            DecryptedCache cache = mCaches.get(delegate);
+            if (cache == null) {
+                cache = new DecryptedCache();
+                delegate.registerOnSharedPreferenceChangeListener(cache);
+                mCaches.put(delegate, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * The decrypted values of one preferences file. Every ObscuredSharedPreferences that wraps the file
+     * shares it so a value is decrypted once per process until it changes.
+     * A value decrypted before an invalidation is dropped (the generation changed meanwhile) so a reader
+     * can't put back a value that was just replaced.
+     */
+    private static class DecryptedCache implements OnSharedPreferenceChangeListener {
+        final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<String, String>();
+        private long generation = 0;
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        synchronized void put(String key, String value, long readGeneration) {
+            if (readGeneration == generation) {
+                values.put(key, value);
+            }
+        }
+
+        synchronized void invalidate(String key) {
+            generation++;
+            values.remove(key);
+        }
+
+        synchronized void invalidateAll() {
+            generation++;
+            values.clear();
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (key == null) {
+                invalidateAll();
+            } else {
+                invalidate(key);
+            }
+        }
+    }
+
     protected String encrypt( String value ) {
 
         try {
             final byte[] bytes = value!=null ? value.getBytes(UTF8) : new byte[0];
-            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            SecretKey key = keyFactory.generateSecret(new PBEKeySpec((StoreConfig.SOOM_SEC + SoomlaApp.getAppContext().getPackageName() + StoreUtils.deviceId()).toCharArray()));
-            Cipher pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
-            pbeCipher.init(Cipher.ENCRYPT_MODE, key, new PBEParameterSpec(StoreUtils.deviceId().getBytes(UTF8), 20));
-            return new String(Base64.encode(pbeCipher.doFinal(bytes), Base64.NO_WRAP),UTF8);
+            return new String(Base64.encode(mEncryptor.get().doFinal(bytes), Base64.NO_WRAP),UTF8);
 
+        } catch( GeneralSecurityException e ) {
+            // a cipher whose doFinal failed may be left in an unknown state. the thread gets a new one.
+            mEncryptor.remove();
+            throw new RuntimeException(e);
         } catch( Exception e ) {
             throw new RuntimeException(e);
         }
@@ -173,15 +310,59 @@ public class ObscuredSharedPreferences implements SharedPreferences {
     protected String decrypt(String value){
         try {
             final byte[] bytes = value!=null ? Base64.decode(value,Base64.DEFAULT) : new byte[0];
-            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBEWithMD5AndDES");
-            SecretKey key = keyFactory.generateSecret(new PBEKeySpec((StoreConfig.SOOM_SEC + SoomlaApp.getAppContext().getPackageName() + StoreUtils.deviceId()).toCharArray()));
-            Cipher pbeCipher = Cipher.getInstance("PBEWithMD5AndDES");
-            pbeCipher.init(Cipher.DECRYPT_MODE, key, new PBEParameterSpec(StoreUtils.deviceId().getBytes(UTF8), 20));
-            return new String(pbeCipher.doFinal(bytes),UTF8);
+            return new String(mDecryptor.get().doFinal(bytes),UTF8);
 
+        } catch( GeneralSecurityException e ) {
+            mDecryptor.remove();
+            throw new RuntimeException(e);
         } catch( Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static Cipher createCipher(int mode) {
+        try {
+            Cipher pbeCipher = Cipher.getInstance(PBE_ALGORITHM);
+            pbeCipher.init(mode, getKey(), new PBEParameterSpec(StoreUtils.deviceId().getBytes(UTF8), 20));
+            return pbeCipher;
+        } catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static synchronized SecretKey getKey() throws GeneralSecurityException {
+        if (mKey == null) {
+            SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(PBE_ALGORITHM);
+            mKey = keyFactory.generateSecret(new PBEKeySpec((StoreConfig.SOOM_SEC + SoomlaApp.getAppContext().getPackageName() + StoreUtils.deviceId()).toCharArray()));
+        }
+        return mKey;
+    }
+
+    private static final String TAG = "SOOMLA ObscuredSharedPreferences";
+    private static final String PBE_ALGORITHM = "PBEWithMD5AndDES";
+
+    private final DecryptedCache mCache;
+
+    // one cache per preferences file. Android only holds the change listeners weakly, this keeps them alive.
+    private static final WeakHashMap<SharedPreferences, DecryptedCache> mCaches =
+            new WeakHashMap<SharedPreferences, DecryptedCache>();
+
+    // the key only depends on the app and the device so it's derived once per process.
+    private static SecretKey mKey;
+
+    // a Cipher isn't thread-safe so every thread initializes its own pair once and reuses it
+    // (doFinal resets it for the next value).
+    private static final ThreadLocal<Cipher> mEncryptor = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.ENCRYPT_MODE);
+        }
+    };
+    private static final ThreadLocal<Cipher> mDecryptor = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            return createCipher(Cipher.DECRYPT_MODE);
+        }
+    };
+
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import com.soomla.store.StoreConfig;
+import com.soomla.store.StoreUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The default storage backend. Keeps the key-val pairs in a single SQLite table.
+ */
+public class SQLiteStorageBackend implements IStorageBackend {
+
+    public SQLiteStorageBackend(Context context) {
+
+        if (StoreConfig.DB_DELETE){
+            context.deleteDatabase(DATABASE_NAME);
+        }
+
+        mDatabaseHelper = new DatabaseHelper(context);
+        mStoreDB = mDatabaseHelper.getWritableDatabase();
+
+        // compiled once and reused for every call (no per-call SQL parsing).
+        mSetKeyValStmt = mStoreDB.compileStatement(SET_KEYVAL_SQL);
+        mDeleteKeyValStmt = mStoreDB.compileStatement("DELETE FROM " + KEYVAL_TABLE_NAME +
+                " WHERE " + KEYVAL_COLUMN_KEY + " = ?");
+    }
+
+    @Override
+    public byte[] get(String key) {
+        // a SQLiteStatement can't return a blob, the cursor query is reused from the connection's
+        // statement cache though (the SQL never changes, only the bound key).
+        Cursor cursor = mStoreDB.rawQuery(GET_KEYVAL_SQL, new String[]{ key });
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] val) {
+        if (val == null) {
+            delete(key);
+            return;
+        }
+
+        mSetKeyValStmt.bindString(1, key);
+        mSetKeyValStmt.bindBlob(2, val);
+        mSetKeyValStmt.execute();
+    }
+
+    @Override
+    public void delete(String key) {
+        mDeleteKeyValStmt.bindString(1, key);
+        mDeleteKeyValStmt.execute();
+    }
+
+    /**
+     * Writes the given writes in one SQLite transaction (one journal sync).
+     */
+    @Override
+    public void batch(Map<String, byte[]> writes) {
+        mStoreDB.beginTransaction();
+        try {
+            for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+                if (entry.getValue() == null) {
+                    delete(entry.getKey());
+                } else {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+            mStoreDB.setTransactionSuccessful();
+        } finally {
+            mStoreDB.endTransaction();
+        }
+    }
+
+    @Override
+    public HashMap<String, byte[]> scan() {
+        HashMap<String, byte[]> rows = new HashMap<String, byte[]>();
+
+        Cursor cursor = mStoreDB.query(KEYVAL_TABLE_NAME, KEYVAL_COLUMNS, null, null, null, null, null);
+        if (cursor != null) {
+            int keyColIdx = cursor.getColumnIndexOrThrow(KEYVAL_COLUMN_KEY);
+            int valColIdx = cursor.getColumnIndexOrThrow(KEYVAL_COLUMN_VAL);
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getString(keyColIdx), cursor.getBlob(valColIdx));
+            }
+            cursor.close();
+        }
+
+        return rows;
+    }
+
+    @Override
+    public void close() {
+        mSetKeyValStmt.close();
+        mDeleteKeyValStmt.close();
+        mDatabaseHelper.close();
+    }
+
+    /**
+     * Deletes the database completely !
+     */
+    public static void purgeDatabase(Context context) {
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    private class DatabaseHelper extends SQLiteOpenHelper{
+
+        public DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase sqLiteDatabase) {
+            if (!sqLiteDatabase.isReadOnly()){
+                sqLiteDatabase.execSQL("PRAGMA foreign_key=ON");
+            }
+
+            createKeyValTable(sqLiteDatabase);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                migrateToBinaryValues(sqLiteDatabase);
+            }
+        }
+
+        private void createKeyValTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + KEYVAL_TABLE_NAME + "(" +
+                    KEYVAL_COLUMN_KEY + " TEXT PRIMARY KEY, " +
+                    KEYVAL_COLUMN_VAL + " BLOB)");
+        }
+
+        /**
+         * Schema v1 -> v2: the TEXT values are rewritten as BLOBs in the binary layout.
+         * All the rows are converted in one pass, inside the upgrade's transaction.
+         */
+        private void migrateToBinaryValues(SQLiteDatabase sqLiteDatabase) {
+            String oldTable = KEYVAL_TABLE_NAME + "_v1";
+            sqLiteDatabase.execSQL("ALTER TABLE " + KEYVAL_TABLE_NAME + " RENAME TO " + oldTable);
+            createKeyValTable(sqLiteDatabase);
+
+            SQLiteStatement insert = sqLiteDatabase.compileStatement(SET_KEYVAL_SQL);
+            Cursor cursor = sqLiteDatabase.query(oldTable, KEYVAL_COLUMNS, null, null, null, null, null);
+            try {
+                int keyColIdx = cursor.getColumnIndexOrThrow(KEYVAL_COLUMN_KEY);
+                int valColIdx = cursor.getColumnIndexOrThrow(KEYVAL_COLUMN_VAL);
+                while (cursor.moveToNext()) {
+                    String key = cursor.getString(keyColIdx);
+                    byte[] val = KeyValDatabase.convertV1Value(key, cursor.getString(valColIdx));
+
+                    insert.bindString(1, key);
+                    if (val == null) {
+                        insert.bindNull(2);
+                    } else {
+                        insert.bindBlob(2, val);
+                    }
+                    insert.execute();
+                }
+            } finally {
+                cursor.close();
+                insert.close();
+            }
+
+            sqLiteDatabase.execSQL("DROP TABLE " + oldTable);
+            StoreUtils.LogDebug(TAG, "Migrated " + KEYVAL_TABLE_NAME + " to schema version 2.");
+        }
+    }
+
+
+    // General key-value storage
+    private static final String KEYVAL_TABLE_NAME = "kv_store";
+    public static final String KEYVAL_COLUMN_KEY = "key";
+    public static final String KEYVAL_COLUMN_VAL = "val";
+    private static final String[] KEYVAL_COLUMNS = {
+            KEYVAL_COLUMN_KEY, KEYVAL_COLUMN_VAL
+    };
+    private static final String SET_KEYVAL_SQL = "INSERT OR REPLACE INTO " + KEYVAL_TABLE_NAME +
+            " (" + KEYVAL_COLUMN_KEY + ", " + KEYVAL_COLUMN_VAL + ") VALUES (?, ?)";
+    private static final String GET_KEYVAL_SQL = "SELECT " + KEYVAL_COLUMN_VAL + " FROM " + KEYVAL_TABLE_NAME +
+            " WHERE " + KEYVAL_COLUMN_KEY + " = ?";
+
+
+    /** Private Members**/
+
+    private static final String TAG              = "SOOMLA SQLiteStorageBackend";
+    private static final String DATABASE_NAME    = "store.kv.db";
+    // 1: obfuscated values as Base64 TEXT. 2: obfuscated values as binary BLOBs.
+    private static final int    DATABASE_VERSION = 2;
+
+    private SQLiteDatabase mStoreDB;
+    private DatabaseHelper mDatabaseHelper;
+
+    private SQLiteStatement mSetKeyValStmt;
+    private SQLiteStatement mDeleteKeyValStmt;
+}
@@ -18,9 +18,12 @@ package com.soomla.store.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.os.Process;
 import android.provider.Settings;
 import android.text.TextUtils;
 import com.soomla.billing.util.AESObfuscator;
+import com.soomla.store.AndroidBus;
+import com.soomla.store.BusProvider;
 import com.soomla.store.SoomlaApp;
 import com.soomla.store.StoreConfig;
 import com.soomla.store.StoreUtils;
@@ -28,6 +31,10 @@ import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
 /**
  * This is the place where all the relevant storage classes are created.
  * This class contains static methods for you to retrieve the various storages.
@@ -48,39 +55,170 @@ public class StorageManager {
     }
 
     public static AESObfuscator getAESObfuscator(){
-        if (mObfuscator == null) {
-            mObfuscator = new AESObfuscator(StoreConfig.obfuscationSalt, SoomlaApp.getAppContext().getPackageName(), StoreUtils.deviceId());
+        AESObfuscator obfuscator = mObfuscator;
+        if (obfuscator != null) {
+            return obfuscator;
         }
 
-        return mObfuscator;
+        awaitWarmUp();
+        return createObfuscator();
     }
 
-    public synchronized static KeyValDatabase getDatabase(){
+    public static KeyValDatabase getDatabase(){
+        // once the database is open it's returned without waiting or locking.
+        KeyValDatabase database = mKvDatabase;
+        if (database != null) {
+            return database;
+        }
+
+        // waiting must happen before taking the lock, the warm-up thread needs it to open the database.
+        awaitWarmUp();
+        return openDatabase();
+    }
 
-        if (mKvDatabase == null) {
-            mKvDatabase = new KeyValDatabase(SoomlaApp.getAppContext());
-
-            migrateOldData();
-
-            SharedPreferences prefs = new ObscuredSharedPreferences(
-                    SoomlaApp.getAppContext().getSharedPreferences(StoreConfig.PREFS_NAME, Context.MODE_PRIVATE));
-            int mt_ver = prefs.getInt("MT_VER", 0);
-            int sa_ver_old = prefs.getInt("SA_VER_OLD", -1);
-            int sa_ver_new = prefs.getInt("SA_VER_NEW", 0);
-            if (mt_ver < StoreConfig.METADATA_VERSION || sa_ver_old < sa_ver_new) {
-                SharedPreferences.Editor edit = prefs.edit();
-                edit.putInt("MT_VER", StoreConfig.METADATA_VERSION);
-                edit.putInt("SA_VER_OLD", sa_ver_new);
-                edit.commit();
-
-                String keyStoreFront = mObfuscator.obfuscateString(KeyValDatabase.keyMetaStorefrontInfo());
-                String keyStoreInfo = mObfuscator.obfuscateString(KeyValDatabase.keyMetaStoreInfo());
-                mKvDatabase.deleteKeyVal(keyStoreFront);
-                mKvDatabase.deleteKeyVal(keyStoreInfo);
+    /**
+     * Starts deriving the obfuscation key, opening the database and preloading it (and the store's preferences)
+     * on a background thread so the first storage access on the UI thread doesn't pay for it.
+     * Threads that need the obfuscator or the database while the warm-up runs wait for it instead of doing the
+     * same work again. SoomlaApp calls this when {@link StoreConfig#warmUpOnStart} is set.
+     * Set the storage backend (see {@link #setStorageBackend(IStorageBackend)}) before calling this.
+     */
+    public synchronized static void warmUp() {
+        if (mWarmUpLatch != null || mKvDatabase != null) {
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        mWarmUpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = System.nanoTime();
+                try {
+                    getAESObfuscator();
+                    new ObscuredSharedPreferences(SoomlaApp.getAppContext()
+                            .getSharedPreferences(StoreConfig.PREFS_NAME, Context.MODE_PRIVATE)).getAll();
+                    preload();
+                    StoreUtils.LogDebug(TAG, "Warm-up took " + (System.nanoTime() - start) / 1000000 + "ms");
+                } catch (RuntimeException e) {
+                    // whatever didn't get done will be done by the first thread that needs it.
+                    StoreUtils.LogError(TAG, "Warm-up failed: " + e.getMessage());
+                } finally {
+                    mWarmUpLatch = null;
+                    latch.countDown();
+                }
             }
+        }, "SOOMLA warm-up");
+        mWarmUpLatch = latch;
+        mWarmUpThread.start();
+    }
+
+    /**
+     * Deletes the stored catalog if the metadata version or the version of the store assets changed since it
+     * was saved. It's checked whenever the database is opened. StoreController checks again after it saved the
+     * version of new store assets, as the database may have been opened (warmed up) before that.
+     */
+    public static void checkMetadataVersion() {
+        checkMetadataVersion(getDatabase());
+    }
+
+    /**
+     * Sets the backend the store keeps its data in. It must be set before the database is first used
+     * (StoreController.initialize does that). The default is {@link SQLiteStorageBackend}.
+     * @param backend the storage backend to use.
+     */
+    public synchronized static void setStorageBackend(IStorageBackend backend) {
+        if (mKvDatabase != null) {
+            StoreUtils.LogError(TAG, "The database is already open. Can't change its storage backend now!");
+            return;
         }
 
-        return mKvDatabase;
+        mStorageBackend = backend;
+    }
+
+    /**
+     * Runs the given unit of work in a single database transaction. All the storage writes it makes are
+     * committed atomically (with one journal sync) or, if it throws, rolled back together.
+     * The events the unit of work posts are held back and only posted once the transaction is committed
+     * (they're dropped if it's rolled back).
+     * Calls may be nested. The inner ones join the outermost transaction.
+     * @param unitOfWork the storage operations to run.
+     */
+    public static void runInTransaction(Runnable unitOfWork) {
+        KeyValDatabase database = getDatabase();
+        AndroidBus bus = BusProvider.getInstance();
+        // only the outermost call holds back the events (the inner ones join its transaction).
+        boolean deferring = bus.deferPosts();
+
+        database.beginTransaction();
+        try {
+            unitOfWork.run();
+            database.setTransactionSuccessful();
+        } finally {
+            // the caches (see KeyValDatabase.runOnCommit()) only get the writes if they're committed.
+            boolean committed = database.endTransaction();
+
+            if (deferring) {
+                if (committed) {
+                    bus.postDeferred();
+                } else {
+                    bus.dropDeferred();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether the current thread is in a transaction (see {@link #runInTransaction(Runnable)}) without
+     * waiting for the warm-up or opening the database: there's no transaction before the database is open.
+     * @return true if the current thread is in a transaction.
+     */
+    static boolean inTransaction() {
+        KeyValDatabase database = mKvDatabase;
+        return database != null && database.inTransaction();
+    }
+
+    /**
+     * Writes all the pending write-behind writes to the database (see {@link StoreConfig#writeBehind}).
+     * Does nothing if the database wasn't opened yet.
+     */
+    public static void flush() {
+        KeyValDatabase database = mKvDatabase;
+        if (database != null) {
+            database.flush();
+        }
+    }
+
+    /**
+     * Loads the whole database into memory with one sequential read and fills the inventory state (balances,
+     * equipped goods and upgrades) of the catalog's items.
+     * After this call the storage classes don't issue a query per key anymore.
+     * StoreController calls this when it's initialized.
+     */
+    public static void preload() {
+        getDatabase().preload();
+
+        InventoryState.preload();
+    }
+
+    /**
+     * Fetches and decrypts all the key-val pairs (once, in one pass) whose plain key starts with the given prefix.
+     * The catalog (see {@link KeyValDatabase#keyMetaStoreInfo()}) is not a string and is left out.
+     * @param keyPrefix the prefix of the required keys or null for all the keys.
+     * @return a map of plain keys to plain values.
+     */
+    public static HashMap<String, String> getAllKeyVals(String keyPrefix) {
+        return decryptKeyVals(getDatabase().getAllKeyVals(), keyPrefix, false);
+    }
+
+    /**
+     * Fetches and decrypts the committed balances, equipped flags and current upgrades (see
+     * {@link KeyValDatabase#isInventoryKey(String)}), without the uncommitted writes of the current thread's
+     * transaction. Only their values are decrypted.
+     * @return a map of plain keys to plain values.
+     */
+    static HashMap<String, String> getCommittedInventoryKeyVals() {
+        return decryptKeyVals(getDatabase().getAllCommittedKeyVals(), null, true);
     }
 
     public static NonConsumableItemsStorage getNonConsumableItemsStorage() {
@@ -104,6 +242,109 @@ public class StorageManager {
     }
 
 
+    /** Private functions **/
+
+    private static HashMap<String, String> decryptKeyVals(Map<String, byte[]> rows, String keyPrefix,
+                                                         boolean inventoryOnly) {
+        AESObfuscator obfuscator = getAESObfuscator();
+        HashMap<String, String> keyVals = new HashMap<String, String>();
+        String catalogKey = KeyValDatabase.keyMetaStoreInfo();
+
+        for (Map.Entry<String, byte[]> entry : rows.entrySet()) {
+            try {
+                String key = obfuscator.unobfuscateToString(entry.getKey());
+                if (key == null || (keyPrefix != null && !key.startsWith(keyPrefix))) {
+                    continue;
+                }
+                // the catalog is a binary snapshot (see StoreInfo.initializeFromDB()), not a string.
+                if (key.equals(catalogKey) || (inventoryOnly && !KeyValDatabase.isInventoryKey(key))) {
+                    continue;
+                }
+                keyVals.put(key, obfuscator.unobfuscateBytesToString(entry.getValue()));
+            } catch (AESObfuscator.ValidationException e) {
+                StoreUtils.LogError(TAG, e.getMessage());
+            }
+        }
+
+        return keyVals;
+    }
+
+    private synchronized static AESObfuscator createObfuscator() {
+        if (mObfuscator == null) {
+            mObfuscator = new AESObfuscator(StoreConfig.obfuscationSalt, SoomlaApp.getAppContext().getPackageName(), StoreUtils.deviceId());
+        }
+        return mObfuscator;
+    }
+
+    /**
+     * The database is only published (see getDatabase()) once the old data is migrated into it and the
+     * metadata version is checked.
+     */
+    private synchronized static KeyValDatabase openDatabase() {
+        if (mKvDatabase == null) {
+            createObfuscator();
+
+            IStorageBackend backend = mStorageBackend != null ? mStorageBackend :
+                    new SQLiteStorageBackend(SoomlaApp.getAppContext());
+            KeyValDatabase database = new KeyValDatabase(backend);
+            database.setWriteBehind(StoreConfig.writeBehind);
+
+            migrateOldData(database);
+
+            checkMetadataVersion(database);
+
+            mKvDatabase = database;
+        }
+
+        return mKvDatabase;
+    }
+
+    private static void checkMetadataVersion(KeyValDatabase database) {
+        SharedPreferences prefs = new ObscuredSharedPreferences(
+                SoomlaApp.getAppContext().getSharedPreferences(StoreConfig.PREFS_NAME, Context.MODE_PRIVATE));
+        int mt_ver = prefs.getInt("MT_VER", 0);
+        int sa_ver_old = prefs.getInt("SA_VER_OLD", -1);
+        int sa_ver_new = prefs.getInt("SA_VER_NEW", 0);
+        if (mt_ver < StoreConfig.METADATA_VERSION || sa_ver_old < sa_ver_new) {
+            SharedPreferences.Editor edit = prefs.edit();
+            edit.putInt("MT_VER", StoreConfig.METADATA_VERSION);
+            edit.putInt("SA_VER_OLD", sa_ver_new);
+            edit.commit();
+
+            AESObfuscator obfuscator = createObfuscator();
+            String keyStoreFront = obfuscator.obfuscateString(KeyValDatabase.keyMetaStorefrontInfo());
+            String keyStoreInfo = obfuscator.obfuscateString(KeyValDatabase.keyMetaStoreInfo());
+            String keyStoreInfoStamp = obfuscator.obfuscateString(KeyValDatabase.keyMetaStoreInfoStamp());
+            database.deleteKeyVal(keyStoreFront);
+            database.deleteKeyVal(keyStoreInfo);
+            database.deleteKeyVal(keyStoreInfoStamp);
+        }
+    }
+
+    /**
+     * Blocks until the warm-up (if one is running) is done. The warm-up thread itself never waits.
+     */
+    private static void awaitWarmUp() {
+        CountDownLatch latch = mWarmUpLatch;
+        if (latch == null || Thread.currentThread() == mWarmUpThread) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
     /** Private members **/
     private static final String TAG = "SOOMLA StorageManager";
 
@@ -113,8 +354,13 @@ public class StorageManager {
     private static VirtualCurrencyStorage  mVirtualCurrencyStorage      = new VirtualCurrencyStorage();
     private static NonConsumableItemsStorage mNonConsumableItemsStorage = new NonConsumableItemsStorage();
     private static KeyValueStorage         mKeyValueStorage             = new KeyValueStorage();
-    private static AESObfuscator           mObfuscator;
-    private static KeyValDatabase          mKvDatabase;
+    private static volatile AESObfuscator  mObfuscator;
+    private static volatile KeyValDatabase mKvDatabase;
+    private static IStorageBackend         mStorageBackend;
+
+    // set while the warm-up runs (see warmUp()).
+    private static volatile CountDownLatch mWarmUpLatch;
+    private static volatile Thread         mWarmUpThread;
 
 
 
@@ -134,7 +380,7 @@ public class StorageManager {
     /** Migration of databases for versions < v2.0 **/
     /** This code will be removed in the next version of android-store. Along with the StoreDatabase itself.**/
 
-    private static void migrateOldData() {
+    private static void migrateOldData(KeyValDatabase database) {
         if (mOldDataMigrated) {
             return;
         }
@@ -163,7 +409,7 @@ public class StorageManager {
                     StoreUtils.LogDebug(TAG, "currency key: " + key + " val: " + balanceStr);
                     key = mObfuscator.obfuscateString(key);
 
-                    mKvDatabase.setKeyVal(key, balanceStr);
+                    database.setKeyVal(key, KeyValDatabase.convertV1Value(key, balanceStr));
                 } catch (AESObfuscator.ValidationException e) {
                     StoreUtils.LogError(TAG, e.getMessage());
                 }
@@ -193,9 +439,10 @@ public class StorageManager {
                     StoreUtils.LogDebug(TAG, "good key: " + key + " val: " + mObfuscator.unobfuscateToString(balanceStr));
 
                     key = mObfuscator.obfuscateString(key);
-                    mKvDatabase.setKeyVal(key, balanceStr);
+                    database.setKeyVal(key, KeyValDatabase.convertV1Value(key, balanceStr));
                     if (equippedInt > 0) {
-                        mKvDatabase.setKeyVal(key, "");
+                        key = mObfuscator.obfuscateString(KeyValDatabase.keyGoodEquipped(itemIdStr));
+                        database.setKeyVal(key, new byte[0]);
                     }
                 } catch (AESObfuscator.ValidationException e) {
                     e.printStackTrace();
@@ -217,13 +464,13 @@ public class StorageManager {
                 String key = KeyValDatabase.keyMetaStoreInfo();
                 key = mObfuscator.obfuscateString(key);
                 if (!TextUtils.isEmpty(storeInfo)) {
-                    mKvDatabase.setKeyVal(key, storeInfo);
+                    database.setKeyVal(key, KeyValDatabase.convertV1Value(key, storeInfo));
                 }
 
                 key = KeyValDatabase.keyMetaStorefrontInfo();
                 key = mObfuscator.obfuscateString(key);
                 if (!TextUtils.isEmpty(storefrontInfo)) {
-                    mKvDatabase.setKeyVal(key, storefrontInfo);
+                    database.setKeyVal(key, KeyValDatabase.convertV1Value(key, storefrontInfo));
                 }
             }
         }
@@ -244,7 +491,7 @@ public class StorageManager {
 
                 String key = KeyValDatabase.keyNonConsExists(productIdStr);
                 key = mObfuscator.obfuscateString(key);
-                mKvDatabase.setKeyVal(key, "");
+                database.setKeyVal(key, new byte[0]);
             }
         }
         if (cursor != null) {
@@ -259,7 +506,7 @@ public class StorageManager {
                 String keyStr = cursor.getString(keyColIdx);
                 String valStr = cursor.getString(valColIdx);
 
-                mKvDatabase.setKeyVal(keyStr, valStr);
+                database.setKeyVal(keyStr, KeyValDatabase.convertV1Value(keyStr, valStr));
             }
         }
         if (cursor != null) {
@@ -15,8 +15,8 @@
  */
 package com.soomla.store.data;
 
-import android.text.TextUtils;
 import com.soomla.billing.util.AESObfuscator;
+import com.soomla.billing.util.Base64;
 import com.soomla.store.IStoreAssets;
 import com.soomla.store.StoreUtils;
 import com.soomla.store.domain.NonConsumableItem;
@@ -27,12 +27,13 @@ import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
 import com.soomla.store.domain.virtualGoods.*;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
-import com.soomla.store.purchaseTypes.PurchaseType;
-import com.soomla.store.purchaseTypes.PurchaseWithMarket;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
@@ -71,41 +72,53 @@ public class StoreInfo {
      * Initializes StoreInfo from the database. This action should be performed only once during the lifetime of
      * a session of the game. StoreController automatically initializes StoreInfo. Don't do it if you don't know what
      * you're doing.
+     * If the stored catalog didn't change since it was last loaded (or saved) nothing is reloaded, so the items
+     * StoreInfo returns stay the same instances.
      * @return success.
      */
     public static boolean initializeFromDB() {
-        String key = KeyValDatabase.keyMetaStoreInfo();
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
-        String val = StorageManager.getDatabase().getKeyVal(key);
+        AESObfuscator obfuscator = StorageManager.getAESObfuscator();
+        KeyValDatabase database = StorageManager.getDatabase();
+
+        // the stamp is saved with the catalog (see saveCatalog()) so an unchanged catalog isn't read at all.
+        String stampKey = obfuscator.obfuscateKey(KeyValDatabase.keyMetaStoreInfoStamp());
+        byte[] stamp = database.getKeyVal(stampKey);
+        if (mCatalog != Catalog.EMPTY && stamp != null && Arrays.equals(stamp, mCatalogStamp)) {
+            StoreUtils.LogDebug(TAG, "the catalog in the DB didn't change. not reloading it.");
+            return true;
+        }
 
-        if (val == null && TextUtils.isEmpty(val)){
+        String key = obfuscator.obfuscateKey(KeyValDatabase.keyMetaStoreInfo());
+        byte[] obfuscated = database.getKeyVal(key);
+
+        if (obfuscated == null || obfuscated.length == 0){
             StoreUtils.LogDebug(TAG, "store json is not in DB yet.");
             return false;
         }
 
+        CatalogSnapshot snapshot;
         try {
-            val = StorageManager.getAESObfuscator().unobfuscateToString(val);
+            snapshot = CatalogSnapshot.fromBytes(obfuscator.unobfuscateBytesToBytes(obfuscated));
         } catch (AESObfuscator.ValidationException e) {
-            StoreUtils.LogError(TAG, e.getMessage());
+            // saved by an older version of the store as JSON.
+            return initializeFromJSON(obfuscated);
+        } catch (IOException e) {
+            StoreUtils.LogError(TAG, "Can't read the catalog snapshot: " + e.getMessage() +
+                    ". Going to return false and make StoreInfo load from static data.");
             return false;
         }
 
-        StoreUtils.LogDebug(TAG, "the metadata-economy json (from DB) is " + val);
-
-        try {
-            fromJSONObject(new JSONObject(val));
-
-            // everything went well... StoreInfo is initialized from the local DB.
-            // it's ok to return now.
-
-            return true;
-        } catch (JSONException e) {
-            StoreUtils.LogDebug(TAG, "Can't parse metadata json. Going to return false and make " +
-                    "StoreInfo load from static data: " + val);
+        setCatalog(snapshot.currencies, snapshot.currencyPacks, snapshot.goods, snapshot.categories,
+                snapshot.nonConsumables);
+        if (stamp == null) {
+            // saved (or migrated) without a stamp.
+            stamp = obfuscator.obfuscateToBytes(stampOf(obfuscated));
+            database.setKeyVal(stampKey, stamp);
         }
+        mCatalogStamp = stamp;
 
-        return false;
-
+        // everything went well... StoreInfo is initialized from the local DB.
+        return true;
     }
 
     /**
@@ -114,12 +127,45 @@ public class StoreInfo {
      * @throws VirtualItemNotFoundException when the given itemId was not found.
      */
     public static VirtualItem getVirtualItem(String itemId) throws VirtualItemNotFoundException{
-        VirtualItem item = mVirtualItems.get(itemId);
-        if (item == null) {
-            throw new VirtualItemNotFoundException("itemId", itemId);
+        Catalog catalog = mCatalog;
+        return catalog.itemAt(getItemOrdinal(catalog, itemId));
+    }
+
+    /**
+     * A utility function to retrieve a single VirtualItem by its ordinal (see {@link #getItemOrdinal(String)}).
+     * @param ordinal the ordinal of the required VirtualItem.
+     * @throws VirtualItemNotFoundException when there's no item with the given ordinal.
+     */
+    public static VirtualItem getVirtualItem(int ordinal) throws VirtualItemNotFoundException{
+        Catalog catalog = mCatalog;
+        if (ordinal < 0 || ordinal >= catalog.getItemCount()) {
+            throw new VirtualItemNotFoundException("ordinal", String.valueOf(ordinal));
         }
 
-        return item;
+        return catalog.itemAt(ordinal);
+    }
+
+    /**
+     * Every item in the catalog is given a dense ordinal (0 to the number of items - 1) when the catalog is loaded.
+     * The ordinal can be used as a handle to the item with the overloads of {@link com.soomla.store.StoreInventory}
+     * that take one, which don't look up the itemId on every call.
+     * Ordinals are only valid until the catalog is loaded again (a new version of IStoreAssets). Keep the
+     * {@link #getCatalogGeneration()} the ordinals were taken at and take them again when it changes.
+     * @param itemId the itemId of the required VirtualItem.
+     * @return the ordinal of the required VirtualItem.
+     * @throws VirtualItemNotFoundException when the given itemId was not found.
+     */
+    public static int getItemOrdinal(String itemId) throws VirtualItemNotFoundException{
+        return getItemOrdinal(mCatalog, itemId);
+    }
+
+    /**
+     * The catalog's generation goes up every time the catalog is loaded (and the ordinals of its items may change,
+     * see {@link #getItemOrdinal(String)}). It's not changed when the catalog in the DB is the one already loaded.
+     * @return the generation of the loaded catalog.
+     */
+    public static int getCatalogGeneration() {
+        return mCatalog.generation;
     }
 
     /**
@@ -132,7 +178,7 @@ public class StoreInfo {
      * @throws VirtualItemNotFoundException when the given productId was not found.
      */
     public static PurchasableVirtualItem getPurchasableItem(String productId) throws VirtualItemNotFoundException{
-        PurchasableVirtualItem item = mPurchasableItems.get(productId);
+        PurchasableVirtualItem item = mCatalog.getPurchasableItem(productId);
         if (item == null) {
             throw new VirtualItemNotFoundException("productId", productId);
         }
@@ -149,7 +195,7 @@ public class StoreInfo {
      * @throws VirtualItemNotFoundException when the given goodItemId was not found.
      */
     public static VirtualCategory getCategory(String goodItemId) throws VirtualItemNotFoundException {
-        VirtualCategory item = mGoodsCategories.get(goodItemId);
+        VirtualCategory item = mCatalog.getCategory(goodItemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("goodItemId", goodItemId);
         }
@@ -163,15 +209,8 @@ public class StoreInfo {
      * @return the first upgrade for the given VirtualGood or null if there are no upgrades.
      */
     public static UpgradeVG getGoodFirstUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for(UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        UpgradeVG[] chain = mCatalog.getGoodUpgradeChain(goodItemId);
+        return chain != null ? chain[0] : null;
     }
 
     /**
@@ -180,15 +219,41 @@ public class StoreInfo {
      * @return the last upgrade for the given VirtualGood or null if there are no upgrades.
      */
     public static UpgradeVG getGoodLastUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for(UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getNextItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        UpgradeVG[] chain = mCatalog.getGoodUpgradeChain(goodItemId);
+        return chain != null ? chain[chain.length - 1] : null;
+    }
+
+    /**
+     * A utility function to retrieve the level of an UpgradeVG in the upgrades chain of its VirtualGood.
+     * @param upgradeVG is the UpgradeVG we're searching the level of.
+     * @return the level of the given upgrade (the first upgrade is level 1) or 0 if it's not in the chain.
+     */
+    public static int getUpgradeLevel(UpgradeVG upgradeVG) {
+        return mCatalog.getUpgradeLevel(upgradeVG);
+    }
+
+    /**
+     * A utility function to retrieve the UpgradeVG that comes after the given one.
+     * @param upgradeVG is the UpgradeVG we're searching the next upgrade for.
+     * @return the next upgrade or null if the given upgrade is the last one (or not in the chain).
+     */
+    public static UpgradeVG getNextUpgrade(UpgradeVG upgradeVG) {
+        Catalog catalog = mCatalog;
+        int level = catalog.getUpgradeLevel(upgradeVG);
+        UpgradeVG[] chain = catalog.getGoodUpgradeChain(upgradeVG.getGoodItemId());
+        return level > 0 && level < chain.length ? chain[level] : null;
+    }
+
+    /**
+     * A utility function to retrieve the UpgradeVG that comes before the given one.
+     * @param upgradeVG is the UpgradeVG we're searching the previous upgrade for.
+     * @return the previous upgrade or null if the given upgrade is the first one (or not in the chain).
+     */
+    public static UpgradeVG getPrevUpgrade(UpgradeVG upgradeVG) {
+        Catalog catalog = mCatalog;
+        int level = catalog.getUpgradeLevel(upgradeVG);
+        UpgradeVG[] chain = catalog.getGoodUpgradeChain(upgradeVG.getGoodItemId());
+        return level > 1 ? chain[level - 2] : null;
     }
 
     /**
@@ -196,66 +261,120 @@ public class StoreInfo {
      * @param goodItemId is the VirtualGood we're searching the upgrades for.
      */
     public static List<UpgradeVG> getGoodUpgrades(String goodItemId) {
-        return mGoodsUpgrades.get(goodItemId);
+        return mCatalog.getGoodUpgrades(goodItemId);
     }
 
     public static boolean hasUpgrades(String goodItemId) {
-        return mGoodsUpgrades.containsKey(goodItemId);
+        return mCatalog.getGoodUpgrades(goodItemId) != null;
     }
 
     /** Getters **/
 
     public static List<VirtualCurrency> getCurrencies(){
-        return mCurrencies;
+        return mCatalog.currencies;
     }
 
     public static List<VirtualCurrencyPack> getCurrencyPacks() {
-        return mCurrencyPacks;
+        return mCatalog.currencyPacks;
     }
 
     public static List<VirtualGood> getGoods() {
-        return mGoods;
+        return mCatalog.goods;
     }
 
     public static List<NonConsumableItem> getNonConsumableItems() {
-        return mNonConsumables;
+        return mCatalog.nonConsumables;
     }
 
     public static List<VirtualCategory> getCategories() {
-        return mCategories;
+        return mCatalog.categories;
+    }
+
+    public static List<EquippableVG> getEquippableGoods() {
+        return mCatalog.equippableGoods;
+    }
+
+    public static List<SingleUseVG> getSingleUseGoods() {
+        return mCatalog.singleUseGoods;
+    }
+
+    /**
+     * A utility function to retrieve the VirtualGoods of a given VirtualCategory.
+     * @param category is the VirtualCategory we're searching the goods of.
+     * @return the VirtualGoods in the given category (in the order of the category) or an empty list.
+     */
+    public static List<VirtualGood> getCategoryGoods(VirtualCategory category) {
+        return mCatalog.getCategoryGoods(category);
+    }
+
+    /**
+     * A utility function to retrieve the VirtualCurrencyPacks of a given VirtualCurrency itemId.
+     * @param currencyItemId is the VirtualCurrency we're searching the packs of.
+     * @return the VirtualCurrencyPacks that give the given currency or an empty list.
+     */
+    public static List<VirtualCurrencyPack> getCurrencyPacks(String currencyItemId) {
+        return mCatalog.getCurrencyPacks(currencyItemId);
+    }
+
+    /**
+     * The storage classes take the catalog once per call and resolve ordinals and items from it, so they never
+     * mix an ordinal of one catalog with the items (or inventory state) of another.
+     * @return the loaded catalog ({@link Catalog#EMPTY} before one is loaded).
+     */
+    static Catalog getCatalog() {
+        return mCatalog;
     }
 
     /** Private functions **/
 
-    private static void fromJSONObject(JSONObject jsonObject) throws JSONException{
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+    private static int getItemOrdinal(Catalog catalog, String itemId) throws VirtualItemNotFoundException {
+        int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal < 0) {
+            throw new VirtualItemNotFoundException("itemId", itemId);
+        }
 
-        JSONArray virtualCurrencies = jsonObject.getJSONArray(JSONConsts.STORE_CURRENCIES);
-        mCurrencies = new LinkedList<VirtualCurrency>();
-        for (int i=0; i<virtualCurrencies.length(); i++){
-            JSONObject o = virtualCurrencies.getJSONObject(i);
-            VirtualCurrency c = new VirtualCurrency(o);
-            mCurrencies.add(c);
+        return ordinal;
+    }
+
+    /**
+     * Reads the catalog JSON the older versions of the store saved and replaces it with a catalog snapshot.
+     */
+    private static boolean initializeFromJSON(byte[] obfuscated) {
+        String val;
+        try {
+            val = StorageManager.getAESObfuscator().unobfuscateBytesToString(obfuscated);
+        } catch (AESObfuscator.ValidationException e) {
+            StoreUtils.LogError(TAG, e.getMessage());
+            return false;
+        }
+
+        StoreUtils.LogDebug(TAG, "the metadata-economy json (from DB) is " + val);
 
-            mVirtualItems.put(c.getItemId(), c);
+        try {
+            fromJSONObject(new JSONObject(val));
+        } catch (JSONException e) {
+            StoreUtils.LogDebug(TAG, "Can't parse metadata json. Going to return false and make " +
+                    "StoreInfo load from static data: " + val);
+            return false;
         }
 
-        JSONArray currencyPacks = jsonObject.getJSONArray(JSONConsts.STORE_CURRENCYPACKS);
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>();
-        for (int i=0; i<currencyPacks.length(); i++){
-            JSONObject o = currencyPacks.getJSONObject(i);
-            VirtualCurrencyPack pack = new VirtualCurrencyPack(o);
-            mCurrencyPacks.add(pack);
+        saveCatalog();
+        return true;
+    }
 
-            mVirtualItems.put(pack.getItemId(), pack);
+    private static void fromJSONObject(JSONObject jsonObject) throws JSONException{
+        JSONArray virtualCurrencies = jsonObject.getJSONArray(JSONConsts.STORE_CURRENCIES);
+        List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>();
+        for (int i=0; i<virtualCurrencies.length(); i++){
+            JSONObject o = virtualCurrencies.getJSONObject(i);
+            currencies.add(new VirtualCurrency(o));
+        }
 
-            PurchaseType purchaseType = pack.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), pack);
-            }
+        JSONArray jsonCurrencyPacks = jsonObject.getJSONArray(JSONConsts.STORE_CURRENCYPACKS);
+        List<VirtualCurrencyPack> currencyPacks = new ArrayList<VirtualCurrencyPack>();
+        for (int i=0; i<jsonCurrencyPacks.length(); i++){
+            JSONObject o = jsonCurrencyPacks.getJSONObject(i);
+            currencyPacks.add(new VirtualCurrencyPack(o));
         }
 
         // The order in which VirtualGoods are created matters!
@@ -266,77 +385,39 @@ public class StoreInfo {
         JSONArray eqGoods = virtualGoods.getJSONArray(JSONConsts.STORE_GOODS_EQ);
         JSONArray upGoods = virtualGoods.getJSONArray(JSONConsts.STORE_GOODS_UP);
         JSONArray paGoods = virtualGoods.getJSONArray(JSONConsts.STORE_GOODS_PA);
-        mGoods = new LinkedList<VirtualGood>();
+        List<VirtualGood> goods = new ArrayList<VirtualGood>();
         for (int i=0; i<suGoods.length(); i++){
-            JSONObject o = suGoods.getJSONObject(i);
-            SingleUseVG g = new SingleUseVG(o);
-            addVG(g);
+            goods.add(new SingleUseVG(suGoods.getJSONObject(i)));
         }
         for (int i=0; i<ltGoods.length(); i++){
-            JSONObject o = ltGoods.getJSONObject(i);
-            LifetimeVG g = new LifetimeVG(o);
-            addVG(g);
+            goods.add(new LifetimeVG(ltGoods.getJSONObject(i)));
         }
         for (int i=0; i<eqGoods.length(); i++){
-            JSONObject o = eqGoods.getJSONObject(i);
-            EquippableVG g = new EquippableVG(o);
-            addVG(g);
+            goods.add(new EquippableVG(eqGoods.getJSONObject(i)));
         }
         for (int i=0; i<paGoods.length(); i++){
-            JSONObject o = paGoods.getJSONObject(i);
-            SingleUsePackVG g = new SingleUsePackVG(o);
-            addVG(g);
+            goods.add(new SingleUsePackVG(paGoods.getJSONObject(i)));
         }
         for (int i=0; i<upGoods.length(); i++){
-            JSONObject o = upGoods.getJSONObject(i);
-            UpgradeVG g = new UpgradeVG(o);
-            addVG(g);
-
-            List<UpgradeVG> upgrades = mGoodsUpgrades.get(g.getGoodItemId());
-            if (upgrades == null) {
-                upgrades = new ArrayList<UpgradeVG>();
-                mGoodsUpgrades.put(g.getGoodItemId(), upgrades);
-            }
-            upgrades.add(g);
+            goods.add(new UpgradeVG(upGoods.getJSONObject(i)));
         }
 
         // Categories depend on virtual goods. That's why the have to be initialized after!
         JSONArray virtualCategories = jsonObject.getJSONArray(JSONConsts.STORE_CATEGORIES);
-        mCategories = new LinkedList<VirtualCategory>();
+        List<VirtualCategory> categories = new ArrayList<VirtualCategory>();
         for(int i=0; i<virtualCategories.length(); i++){
             JSONObject o = virtualCategories.getJSONObject(i);
-            VirtualCategory category = new VirtualCategory(o);
-            mCategories.add(category);
-            for(String goodItemId : category.getGoodsItemIds()) {
-                mGoodsCategories.put(goodItemId, category);
-            }
+            categories.add(new VirtualCategory(o));
         }
 
-        JSONArray nonConsumables = jsonObject.getJSONArray(JSONConsts.STORE_NONCONSUMABLES);
-        mNonConsumables = new LinkedList<NonConsumableItem>();
-        for (int i=0; i<nonConsumables.length(); i++){
-            JSONObject o = nonConsumables.getJSONObject(i);
-            NonConsumableItem non = new NonConsumableItem(o);
-            mNonConsumables.add(non);
-
-            mVirtualItems.put(non.getItemId(), non);
-
-            PurchaseType purchaseType = non.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), non);
-            }
+        JSONArray jsonNonConsumables = jsonObject.getJSONArray(JSONConsts.STORE_NONCONSUMABLES);
+        List<NonConsumableItem> nonConsumables = new ArrayList<NonConsumableItem>();
+        for (int i=0; i<jsonNonConsumables.length(); i++){
+            JSONObject o = jsonNonConsumables.getJSONObject(i);
+            nonConsumables.add(new NonConsumableItem(o));
         }
-    }
 
-    private static void addVG(VirtualGood g) {
-        mGoods.add(g);
-
-        mVirtualItems.put(g.getItemId(), g);
-
-        PurchaseType purchaseType = g.getPurchaseType();
-        if (purchaseType instanceof PurchaseWithMarket) {
-            mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), g);
-        }
+        setCatalog(currencies, currencyPacks, goods, categories, nonConsumables);
     }
 
     /**
@@ -344,14 +425,15 @@ public class StoreInfo {
      * @return a JSONObject representation of the StoreInfo.
      */
     public static JSONObject toJSONObject(){
+        Catalog catalog = mCatalog;
 
         JSONArray currencies = new JSONArray();
-        for(VirtualCurrency c : mCurrencies){
+        for(VirtualCurrency c : catalog.currencies){
             currencies.put(c.toJSONObject());
         }
 
         JSONArray currencyPacks = new JSONArray();
-        for(VirtualCurrencyPack pack : mCurrencyPacks){
+        for(VirtualCurrencyPack pack : catalog.currencyPacks){
             currencyPacks.put(pack.toJSONObject());
         }
 
@@ -361,7 +443,7 @@ public class StoreInfo {
         JSONArray eqGoods = new JSONArray();
         JSONArray paGoods = new JSONArray();
         JSONArray upGoods = new JSONArray();
-        for(VirtualGood good : mGoods){
+        for(VirtualGood good : catalog.goods){
             if (good instanceof SingleUseVG) {
                 suGoods.put(good.toJSONObject());
             }  else if (good instanceof EquippableVG) {
@@ -377,12 +459,12 @@ public class StoreInfo {
 
 
         JSONArray categories = new JSONArray();
-        for (VirtualCategory cat : mCategories){
+        for (VirtualCategory cat : catalog.categories){
             categories.put(cat.toJSONObject());
         }
 
         JSONArray nonConsumableItems = new JSONArray();
-        for(NonConsumableItem non : mNonConsumables){
+        for(NonConsumableItem non : catalog.nonConsumables){
             nonConsumableItems.put(non.toJSONObject());
         }
 
@@ -408,85 +490,113 @@ public class StoreInfo {
 
     private static void initializeWithStoreAssets(IStoreAssets storeAssets) {
         /// fall-back here if the json doesn't exist, we load the store from the given {@link IStoreAssets}.
-        mCurrencies = Arrays.asList(storeAssets.getCurrencies());
-        mCurrencyPacks = Arrays.asList(storeAssets.getCurrencyPacks());
-        mGoods = Arrays.asList(storeAssets.getGoods());
-        mCategories = Arrays.asList(storeAssets.getCategories());
-        mNonConsumables = Arrays.asList(storeAssets.getNonConsumableItems());
-
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
-
-        for(VirtualCurrency vi : mCurrencies) {
-            mVirtualItems.put(vi.getItemId(), vi);
-        }
+        setCatalog(Arrays.asList(storeAssets.getCurrencies()),
+                Arrays.asList(storeAssets.getCurrencyPacks()),
+                Arrays.asList(storeAssets.getGoods()),
+                Arrays.asList(storeAssets.getCategories()),
+                Arrays.asList(storeAssets.getNonConsumableItems()));
+
+        // put StoreInfo in the database
+        saveCatalog();
+    }
 
-        for(VirtualCurrencyPack vi : mCurrencyPacks) {
-            mVirtualItems.put(vi.getItemId(), vi);
+    /**
+     * Replaces the catalog with one built from the given lists.
+     */
+    private static synchronized void setCatalog(List<VirtualCurrency> currencies,
+                                                List<VirtualCurrencyPack> currencyPacks, List<VirtualGood> goods,
+                                                List<VirtualCategory> categories,
+                                                List<NonConsumableItem> nonConsumables) {
+        Catalog catalog = new Catalog(mCatalog.generation + 1, currencies, currencyPacks, goods, categories,
+                nonConsumables);
+
+        // the items, their ordinals and the generation are published together. the inventory state is kept for
+        // one generation (the ordinals may have changed), so it's filled again for the new catalog.
+        mCatalog = catalog;
+
+        primeKeyCache(catalog);
+    }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), vi);
-            }
+    /**
+     * Saves the catalog in the database as a {@link CatalogSnapshot} (in place of the JSON older versions saved).
+     * A catalog the snapshot can't hold (a kind of VirtualGood it doesn't know) is saved as JSON, which
+     * initializeFromDB() still reads.
+     */
+    private static void saveCatalog() {
+        final AESObfuscator obfuscator = StorageManager.getAESObfuscator();
+        Catalog catalog = mCatalog;
+        byte[] val;
+        try {
+            byte[] snapshot = new CatalogSnapshot(catalog.currencies, catalog.currencyPacks, catalog.goods,
+                    catalog.categories, catalog.nonConsumables).toBytes();
+            StoreUtils.LogDebug(TAG, "saving the catalog snapshot (" + snapshot.length + " bytes)");
+            val = obfuscator.obfuscateToBytes(snapshot);
+        } catch (IOException e) {
+            StoreUtils.LogError(TAG, "Can't write a catalog snapshot: " + e.getMessage() + ". Saving it as JSON.");
+            val = obfuscator.obfuscateToBytes(toJSONObject().toString());
         }
 
-        for(VirtualGood vi : mGoods) {
-            mVirtualItems.put(vi.getItemId(), vi);
-
-            if (vi instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vi).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vi).getGoodItemId(), upgrades);
-                }
-                upgrades.add((UpgradeVG) vi);
+        final byte[] catalogVal = val;
+        final byte[] stamp = obfuscator.obfuscateToBytes(stampOf(val));
+        // the catalog and its stamp are saved together or not at all.
+        StorageManager.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                KeyValDatabase database = StorageManager.getDatabase();
+                database.setKeyVal(obfuscator.obfuscateKey(KeyValDatabase.keyMetaStoreInfo()), catalogVal);
+                database.setKeyVal(obfuscator.obfuscateKey(KeyValDatabase.keyMetaStoreInfoStamp()), stamp);
             }
+        });
+        mCatalogStamp = stamp;
+    }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), vi);
-            }
+    /**
+     * @param val the stored (obfuscated) catalog.
+     * @return a digest of the stored catalog, saved next to it as its stamp.
+     */
+    private static String stampOf(byte[] val) {
+        try {
+            return Base64.encode(MessageDigest.getInstance("SHA-1").digest(val));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Invalid environment", e);
         }
+    }
 
-        for(NonConsumableItem vi : mNonConsumables) {
-            mVirtualItems.put(vi.getItemId(), vi);
+    /**
+     * Obfuscates (and memoizes) the storage keys of all the items in the catalog so the storage hot path
+     * never has to run the cipher just to build a key.
+     */
+    private static void primeKeyCache(Catalog catalog) {
+        AESObfuscator obfuscator = StorageManager.getAESObfuscator();
+        // a good has up to 3 keys (balance, equipped and upgrade), the other items have one.
+        obfuscator.ensureKeyCacheCapacity(3 * catalog.getItemCount());
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getGoogleMarketItem().getProductId(), vi);
-            }
+        for(VirtualCurrency c : catalog.currencies) {
+            obfuscator.obfuscateKey(KeyValDatabase.keyCurrencyBalance(c.getItemId()));
         }
 
-        for(VirtualCategory category : mCategories) {
-            for(String goodItemId : category.getGoodsItemIds()) {
-                mGoodsCategories.put(goodItemId, category);
+        for(VirtualGood g : catalog.goods) {
+            obfuscator.obfuscateKey(KeyValDatabase.keyGoodBalance(g.getItemId()));
+            if (g instanceof EquippableVG) {
+                obfuscator.obfuscateKey(KeyValDatabase.keyGoodEquipped(g.getItemId()));
+            }
+            if (catalog.getGoodUpgrades(g.getItemId()) != null) {
+                obfuscator.obfuscateKey(KeyValDatabase.keyGoodUpgrade(g.getItemId()));
             }
         }
 
-        // put StoreInfo in the database as JSON
-        String store_json = toJSONObject().toString();
-        StoreUtils.LogDebug(TAG, store_json);
-        String key = KeyValDatabase.keyMetaStoreInfo();
-        store_json = StorageManager.getAESObfuscator().obfuscateString(store_json);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
-        StorageManager.getDatabase().setKeyVal(key, store_json);
+        for(NonConsumableItem non : catalog.nonConsumables) {
+            obfuscator.obfuscateKey(KeyValDatabase.keyNonConsExists(non.getItemId()));
+        }
     }
 
     /** Private members **/
 
     private static final String TAG = "SOOMLA StoreInfo";
 
-    // convenient hash to retrieve virtual items
-    private static HashMap<String, VirtualItem>             mVirtualItems;
-    private static HashMap<String, PurchasableVirtualItem>  mPurchasableItems;
-    private static HashMap<String, VirtualCategory>         mGoodsCategories;
-    private static HashMap<String, List<UpgradeVG>>         mGoodsUpgrades;
-
-    private static List<VirtualCurrency>                mCurrencies;
-    private static List<VirtualCurrencyPack>            mCurrencyPacks;
-    private static List<VirtualGood>                    mGoods;
-    private static List<VirtualCategory>                mCategories;
-    private static List<NonConsumableItem>              mNonConsumables;
+    // replaced as a whole (never changed) when a catalog is loaded. see Catalog.
+    private static volatile Catalog                     mCatalog = Catalog.EMPTY;
+
+    // the stored stamp of the catalog above (see saveCatalog()): the catalog is only reloaded when it's different.
+    private static byte[]                               mCatalogStamp;
 }
\ No newline at end of file
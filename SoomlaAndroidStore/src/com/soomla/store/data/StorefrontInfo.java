@@ -59,9 +59,9 @@ public class StorefrontInfo {
 
             mStorefrontJSON = storefrontJSON;
             String key = KeyValDatabase.keyMetaStorefrontInfo();
-            storefrontJSON = StorageManager.getAESObfuscator().obfuscateString(storefrontJSON);
-            key = StorageManager.getAESObfuscator().obfuscateString(key);
-            StorageManager.getDatabase().setKeyVal(key, storefrontJSON);
+            byte[] val = StorageManager.getAESObfuscator().obfuscateToBytes(storefrontJSON);
+            key = StorageManager.getAESObfuscator().obfuscateKey(key);
+            StorageManager.getDatabase().setKeyVal(key, val);
 
             mInitialized = true;
         }
@@ -74,17 +74,17 @@ public class StorefrontInfo {
     public boolean initializeFromDB() {
 
         String key = KeyValDatabase.keyMetaStorefrontInfo();
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
-        String val = StorageManager.getDatabase().getKeyVal(key);
+        byte[] val = StorageManager.getDatabase().getKeyVal(key);
 
-        if (val == null && TextUtils.isEmpty(val)){
+        if (val == null || val.length == 0){
             StoreUtils.LogDebug(TAG, "storefront json is not in DB yet ");
             return false;
         }
 
         try {
-            mStorefrontJSON = StorageManager.getAESObfuscator().unobfuscateToString(val);
+            mStorefrontJSON = StorageManager.getAESObfuscator().unobfuscateBytesToString(val);
         } catch (AESObfuscator.ValidationException e) {
             StoreUtils.LogError(TAG, e.getMessage());
             return false;
@@ -52,10 +52,21 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
 
         String itemId = good.getItemId();
         String key = KeyValDatabase.keyGoodUpgrade(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
         StorageManager.getDatabase().deleteKeyVal(key);
 
+        final Catalog catalog = StoreInfo.getCatalog();
+        final int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal >= 0) {
+            StorageManager.getDatabase().runOnCommit(new Runnable() {
+                @Override
+                public void run() {
+                    InventoryState.setUpgrade(catalog, ordinal, -1, 0);
+                }
+            });
+        }
+
         BusProvider.getInstance().post(new GoodUpgradeEvent(good, null));
     }
 
@@ -69,11 +80,25 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
 
         String itemId = good.getItemId();
         String key = KeyValDatabase.keyGoodUpgrade(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
-        String upItemId =  StorageManager.getAESObfuscator().obfuscateString(upgradeVG.getItemId());
+        byte[] upItemId =  StorageManager.getAESObfuscator().obfuscateToBytes(upgradeVG.getItemId());
         StorageManager.getDatabase().setKeyVal(key, upItemId);
 
+        final Catalog catalog = StoreInfo.getCatalog();
+        final int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal >= 0) {
+            // an upgrade that's not in the catalog is kept as no upgrade (as it's read from the database).
+            final int upgradeOrdinal = catalog.ordinalOf(upgradeVG.getItemId());
+            final int level = upgradeOrdinal >= 0 ? catalog.getUpgradeLevel(upgradeVG) : 0;
+            StorageManager.getDatabase().runOnCommit(new Runnable() {
+                @Override
+                public void run() {
+                    InventoryState.setUpgrade(catalog, ordinal, upgradeOrdinal, level);
+                }
+            });
+        }
+
         BusProvider.getInstance().post(new GoodUpgradeEvent(good, upgradeVG));
     }
 
@@ -87,17 +112,28 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
 
         String itemId = good.getItemId();
         String key = KeyValDatabase.keyGoodUpgrade(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        Catalog catalog = StoreInfo.getCatalog();
+        int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal >= 0 && !hasUncommittedWrite(key)) {
+            int upgradeOrdinal = InventoryState.getUpgrade(catalog, ordinal);
+            if (upgradeOrdinal < 0) {
+                StoreUtils.LogError(mTag, "You tried to fetch the current upgrade of " + good.getName() + " but there's not upgrade to it.");
+                return null;
+            }
+            return (UpgradeVG) catalog.itemAt(upgradeOrdinal);
+        }
+
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
-        String upItemId = StorageManager.getDatabase().getKeyVal(key);
+        byte[] val = StorageManager.getDatabase().getKeyVal(key);
 
-        if (upItemId == null) {
+        if (val == null) {
             StoreUtils.LogError(mTag, "You tried to fetch the current upgrade of " + good.getName() + " but there's not upgrade to it.");
             return null;
         }
 
         try {
-            upItemId = StorageManager.getAESObfuscator().unobfuscateToString(upItemId);
+            String upItemId = StorageManager.getAESObfuscator().unobfuscateBytesToString(val);
             return (UpgradeVG) StoreInfo.getVirtualItem(upItemId);
         } catch (AESObfuscator.ValidationException e) {
             StoreUtils.LogError(mTag, e.getMessage());
@@ -110,6 +146,24 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         return null;
     }
 
+    /**
+     * Retrieves the level of the current upgrade of the VirtualGood with the given ordinal
+     * (see {@link StoreInfo#getItemOrdinal(String)}).
+     * @param ordinal the ordinal of the VirtualGood.
+     * @return the level of the current upgrade (the first upgrade is level 1) or 0 if there's no upgrade.
+     */
+    public int getUpgradeLevel(int ordinal) {
+        Catalog catalog = StoreInfo.getCatalog();
+        if (StorageManager.inTransaction()) {
+            VirtualGood good = (VirtualGood) catalog.itemAt(ordinal);
+            if (hasUncommittedWrite(KeyValDatabase.keyGoodUpgrade(good.getItemId()))) {
+                UpgradeVG upgradeVG = getCurrentUpgrade(good);
+                return upgradeVG != null ? catalog.getUpgradeLevel(upgradeVG) : 0;
+            }
+        }
+        return InventoryState.getUpgradeLevel(catalog, ordinal);
+    }
+
     /**
      * Check the equipping status of the given EquippableVG.
      * @param good the EquippableVG to check the status for.
@@ -119,11 +173,30 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         StoreUtils.LogDebug(mTag, "checking if virtual good with itemId: " + good.getItemId() + " is equipped.");
 
         String itemId = good.getItemId();
-        String key = KeyValDatabase.keyGoodEquipped(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
-        String val = StorageManager.getDatabase().getKeyVal(key);
+        Catalog catalog = StoreInfo.getCatalog();
+        int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal >= 0 && !hasUncommittedWrite(KeyValDatabase.keyGoodEquipped(itemId))) {
+            return InventoryState.isEquipped(catalog, ordinal);
+        }
 
-        return val != null;
+        return fetchEquipped(itemId);
+    }
+
+    /**
+     * Check the equipping status of the EquippableVG with the given ordinal
+     * (see {@link StoreInfo#getItemOrdinal(String)}).
+     * @param ordinal the ordinal of the EquippableVG.
+     * @return the equipping status of the EquippableVG.
+     */
+    public boolean isEquipped(int ordinal) {
+        Catalog catalog = StoreInfo.getCatalog();
+        if (StorageManager.inTransaction()) {
+            String itemId = catalog.itemAt(ordinal).getItemId();
+            if (hasUncommittedWrite(KeyValDatabase.keyGoodEquipped(itemId))) {
+                return fetchEquipped(itemId);
+            }
+        }
+        return InventoryState.isEquipped(catalog, ordinal);
     }
 
     /**
@@ -142,22 +215,45 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         equipPriv(good, false);
     }
 
-    private void equipPriv(EquippableVG good, boolean equip){
+    private void equipPriv(EquippableVG good, final boolean equip){
         StoreUtils.LogDebug(mTag, (!equip ? "unequipping " : "equipping ") + good.getName() + ".");
 
         String itemId = good.getItemId();
         String key = KeyValDatabase.keyGoodEquipped(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
 
         if (equip) {
-            StorageManager.getDatabase().setKeyVal(key, "");
-            BusProvider.getInstance().post(new GoodEquippedEvent(good));
+            StorageManager.getDatabase().setKeyVal(key, new byte[0]);
         } else {
             StorageManager.getDatabase().deleteKeyVal(key);
+        }
+
+        final Catalog catalog = StoreInfo.getCatalog();
+        final int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal >= 0) {
+            StorageManager.getDatabase().runOnCommit(new Runnable() {
+                @Override
+                public void run() {
+                    InventoryState.setEquipped(catalog, ordinal, equip);
+                }
+            });
+        }
+
+        if (equip) {
+            BusProvider.getInstance().post(new GoodEquippedEvent(good));
+        } else {
             BusProvider.getInstance().post(new GoodUnEquippedEvent(good));
         }
     }
 
+    private boolean fetchEquipped(String itemId) {
+        String key = KeyValDatabase.keyGoodEquipped(itemId);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
+        byte[] val = StorageManager.getDatabase().getKeyVal(key);
+
+        return val != null;
+    }
+
     @Override
     protected String keyBalance(String itemId) {
         return KeyValDatabase.keyGoodBalance(itemId);
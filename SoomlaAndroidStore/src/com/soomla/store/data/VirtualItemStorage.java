@@ -20,6 +20,8 @@ import com.soomla.billing.util.AESObfuscator;
 import com.soomla.store.StoreUtils;
 import com.soomla.store.domain.VirtualItem;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * This class is an abstract definition of a Virtual Item Storage.
  */
@@ -34,24 +36,35 @@ public abstract class VirtualItemStorage {
         StoreUtils.LogDebug(mTag, "trying to fetch balance for virtual item with itemId: " + item.getItemId());
 
         String itemId = item.getItemId();
-        String key = keyBalance(itemId);
-        key = StorageManager.getAESObfuscator().obfuscateString(key);
-        String val = StorageManager.getDatabase().getKeyVal(key);
+        Catalog catalog = StoreInfo.getCatalog();
+        int ordinal = catalog.ordinalOf(itemId);
 
-        int balance = 0;
-        if (val != null) {
-            try {
-                balance = StorageManager.getAESObfuscator().unobfuscateToInt(val);
-            } catch (AESObfuscator.ValidationException e) {
-                StoreUtils.LogError(mTag, e.getMessage());
-            }
-        }
+        // items that aren't in the catalog aren't kept in the inventory state.
+        int balance = ordinal >= 0 && !hasUncommittedWrite(keyBalance(itemId)) ?
+                InventoryState.getBalance(catalog, ordinal) : fetchBalance(itemId);
 
         StoreUtils.LogDebug(mTag, "the balance for " + item.getItemId() + " is " + balance);
 
         return balance;
     }
 
+    /**
+     * Fetch the balance of the virtual item with the given ordinal (see {@link StoreInfo#getItemOrdinal(String)}).
+     * The balance is read from the inventory state without any lookup by itemId.
+     * @param ordinal is the ordinal of the required virtual item.
+     * @return the balance of the required virtual item.
+     */
+    public int getBalance(int ordinal) {
+        Catalog catalog = StoreInfo.getCatalog();
+        if (StorageManager.inTransaction()) {
+            String itemId = catalog.itemAt(ordinal).getItemId();
+            if (hasUncommittedWrite(keyBalance(itemId))) {
+                return fetchBalance(itemId);
+            }
+        }
+        return InventoryState.getBalance(catalog, ordinal);
+    }
+
     /**
      * Set the balance of the given virtual item.
      * @param item is the required virtual item.
@@ -60,18 +73,17 @@ public abstract class VirtualItemStorage {
     public int setBalance(VirtualItem item, int balance) {
         StoreUtils.LogDebug(mTag, "setting balance " + balance + " to " + item.getName() + ".");
 
-        int oldBalance = getBalance(item);
-        if (oldBalance == balance) {
-            return balance;
-        }
-
-        String itemId = item.getItemId();
+        ReentrantLock lock = lockBalance(item.getItemId());
+        try {
+            int oldBalance = getBalance(item);
+            if (oldBalance == balance) {
+                return balance;
+            }
 
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-        balanceStr = StorageManager.getAESObfuscator().obfuscateString(balanceStr);
-        key      = StorageManager.getAESObfuscator().obfuscateString(key);
-        StorageManager.getDatabase().setKeyVal(key, balanceStr);
+            persistBalance(item.getItemId(), balance);
+        } finally {
+            unlockBalance(lock);
+        }
 
         postBalanceChangeEvent(item, balance, 0);
 
@@ -86,17 +98,18 @@ public abstract class VirtualItemStorage {
     public int add(VirtualItem item, int amount){
         StoreUtils.LogDebug(mTag, "adding " + amount + " " + item.getName());
 
-        String itemId = item.getItemId();
-        int balance = getBalance(item);
-        String balanceStr = "" + (balance + amount);
-        String key = keyBalance(itemId);
-        balanceStr = StorageManager.getAESObfuscator().obfuscateString(balanceStr);
-        key      = StorageManager.getAESObfuscator().obfuscateString(key);
-        StorageManager.getDatabase().setKeyVal(key, balanceStr);
+        int balance;
+        ReentrantLock lock = lockBalance(item.getItemId());
+        try {
+            balance = getBalance(item) + amount;
+            persistBalance(item.getItemId(), balance);
+        } finally {
+            unlockBalance(lock);
+        }
 
-        postBalanceChangeEvent(item, balance+amount, amount);
+        postBalanceChangeEvent(item, balance, amount);
 
-        return balance + amount;
+        return balance;
     }
 
     /**
@@ -107,22 +120,160 @@ public abstract class VirtualItemStorage {
     public int remove(VirtualItem item, int amount){
         StoreUtils.LogDebug(mTag, "removing " + amount + " " + item.getName() + ".");
 
-        String itemId = item.getItemId();
-        int balance = getBalance(item) - amount;
-        balance = balance > 0 ? balance : 0;
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-        balanceStr = StorageManager.getAESObfuscator().obfuscateString(balanceStr);
-        key      = StorageManager.getAESObfuscator().obfuscateString(key);
-        StorageManager.getDatabase().setKeyVal(key, balanceStr);
+        int balance;
+        ReentrantLock lock = lockBalance(item.getItemId());
+        try {
+            balance = getBalance(item) - amount;
+            balance = balance > 0 ? balance : 0;
+            persistBalance(item.getItemId(), balance);
+        } finally {
+            unlockBalance(lock);
+        }
 
         postBalanceChangeEvent(item, balance, -1*amount);
 
         return balance;
     }
 
+    /**
+     * Runs the given unit of work in a transaction (see {@link StorageManager#runInTransaction(Runnable)}) while
+     * holding the lock of the given item's balance until the transaction is committed or rolled back, so the
+     * balance can't be changed by another thread between reading it and committing the unit of work.
+     * If this call is nested in another transaction, the lock is held until the outermost one ends.
+     * @param item is the virtual item whose balance is locked.
+     * @param unitOfWork the work to run.
+     */
+    public static void runInTransactionLocked(final VirtualItem item, final Runnable unitOfWork) {
+        StorageManager.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                lockBalance(item.getItemId());
+                unitOfWork.run();
+            }
+        });
+    }
+
+    /**
+     * Drops all cached balances (and the rest of the inventory state). The next call to
+     * {@link #getBalance(VirtualItem)} will read the balances from the database again.
+     */
+    public static void clearBalanceCache() {
+        InventoryState.clear();
+    }
+
+    /** Private functions **/
+
+    private int fetchBalance(String itemId) {
+        String key = keyBalance(itemId);
+        key = StorageManager.getAESObfuscator().obfuscateKey(key);
+        byte[] val = StorageManager.getDatabase().getKeyVal(key);
+
+        int balance = 0;
+        if (val != null) {
+            try {
+                balance = StorageManager.getAESObfuscator().unobfuscateBytesToInt(val);
+            } catch (AESObfuscator.ValidationException e) {
+                StoreUtils.LogError(mTag, e.getMessage());
+            }
+        }
+        return balance;
+    }
+
+    /**
+     * Writes the given balance to the database and, once it's committed, to the inventory state (write-through).
+     */
+    private void persistBalance(String itemId, final int balance) {
+        String key = keyBalance(itemId);
+        byte[] val = StorageManager.getAESObfuscator().obfuscateToBytes(balance);
+        key      = StorageManager.getAESObfuscator().obfuscateKey(key);
+
+        KeyValDatabase database = StorageManager.getDatabase();
+        database.setKeyVal(key, val);
+
+        final Catalog catalog = StoreInfo.getCatalog();
+        final int ordinal = catalog.ordinalOf(itemId);
+        if (ordinal >= 0) {
+            database.runOnCommit(new Runnable() {
+                @Override
+                public void run() {
+                    InventoryState.setBalance(catalog, ordinal, balance);
+                }
+            });
+        }
+    }
+
+    /**
+     * The balance of an item is read-modified-written while holding its lock so concurrent updates to the
+     * same item are atomic, while updates to different items (usually) don't wait for each other.
+     * The database's own lock is only taken for single operations so it's safe to use it under these locks.
+     *
+     * In a transaction the new balance is only committed when the transaction ends, so the lock is held until
+     * then (another thread would otherwise read the old balance and its update would be overwritten by the
+     * commit). Transactions take mTransactionLock before their first balance lock: only one transaction at a
+     * time holds balance locks, and the threads that aren't in one hold a single balance lock at a time, so
+     * they can't wait for each other in a cycle.
+     * @return the lock to pass to unlockBalance(), or null if the current transaction holds it.
+     */
+    private static ReentrantLock lockBalance(String itemId) {
+        ReentrantLock lock = mBalanceLocks[(itemId.hashCode() & 0x7fffffff) % mBalanceLocks.length];
+
+        if (!StorageManager.inTransaction()) {
+            lock.lock();
+            return lock;
+        }
+
+        KeyValDatabase database = StorageManager.getDatabase();
+        holdUntilTransactionEnds(database, mTransactionLock);
+        holdUntilTransactionEnds(database, lock);
+        return null;
+    }
+
+    private static void unlockBalance(ReentrantLock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    private static void holdUntilTransactionEnds(KeyValDatabase database, final ReentrantLock lock) {
+        if (lock.isHeldByCurrentThread()) {
+            return;
+        }
+
+        lock.lock();
+        database.runOnEnd(new Runnable() {
+            @Override
+            public void run() {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * The inventory state only holds committed values. A transaction reads the values it changed itself from
+     * the database.
+     * @param plainKey the plain key of the value.
+     * @return true if the current thread's transaction changed the value and didn't commit it yet.
+     */
+    protected static boolean hasUncommittedWrite(String plainKey) {
+        if (!StorageManager.inTransaction()) {
+            return false;
+        }
+
+        String key = StorageManager.getAESObfuscator().obfuscateKey(plainKey);
+        return StorageManager.getDatabase().hasUncommittedWrite(key);
+    }
+
     protected abstract String keyBalance(String itemId);
     protected abstract void postBalanceChangeEvent(VirtualItem item, int balance, int amountAdded);
 
     protected String mTag = "SOOMLA VirtualItemStorage";
+
+    private static final int BALANCE_LOCK_STRIPES = 32;
+    private static final ReentrantLock[] mBalanceLocks = new ReentrantLock[BALANCE_LOCK_STRIPES];
+    private static final ReentrantLock mTransactionLock = new ReentrantLock();
+    static {
+        for (int i = 0; i < BALANCE_LOCK_STRIPES; i++) {
+            mBalanceLocks[i] = new ReentrantLock();
+        }
+    }
 }
@@ -44,7 +44,9 @@ public abstract class PurchasableVirtualItem extends VirtualItem {
 
         mPurchaseType = purchaseType;
 
-        mPurchaseType.setAssociatedItem(this);
+        if (mPurchaseType != null) {
+            mPurchaseType.setAssociatedItem(this);
+        }
     }
 
     /**
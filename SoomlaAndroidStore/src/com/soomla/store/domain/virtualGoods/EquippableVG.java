@@ -120,8 +120,8 @@ public class EquippableVG extends LifetimeVG{
         // only if the user has bought this EquippableVG, the EquippableVG is equipped.
         if (StorageManager.getVirtualGoodsStorage().getBalance(this) > 0){
 
+            VirtualCategory category = null;
             if (mEquippingModel == EquippingModel.CATEGORY) {
-                VirtualCategory category = null;
                 try {
                     category = StoreInfo.getCategory(getItemId());
                 } catch (VirtualItemNotFoundException e) {
@@ -129,32 +129,26 @@ public class EquippableVG extends LifetimeVG{
                             "associated category. virtual good itemId: " + getItemId());
                     return;
                 }
+            }
 
-                for(String goodItemId : category.getGoodsItemIds()) {
-                    EquippableVG equippableVG = null;
-                    try {
-                        equippableVG = (EquippableVG) StoreInfo.getVirtualItem(goodItemId);
-                    } catch (VirtualItemNotFoundException e) {
-                        StoreUtils.LogError(TAG, "On equip, couldn't find one of the itemIds in the category. Continuing to the next one. itemId: " + goodItemId);
-                        continue;
-                    } catch (ClassCastException ex) {
-                        StoreUtils.LogDebug(TAG, "On equip, an error occurred. It's a debug message b/c the VirtualGood may just not be an EquippableVG. itemId: " + goodItemId);
-                        continue;
-                    }
-                    if (equippableVG != this) {
-                        equippableVG.unequip();
-                    }
-                }
-            } else if (mEquippingModel == EquippingModel.GLOBAL) {
-                for(VirtualGood good : StoreInfo.getGoods()) {
-                    if (good != this &&
-                        good instanceof EquippableVG) {
-                        ((EquippableVG)good).unequip();
+            // unequipping the others and equipping this one are committed together
+            final VirtualCategory equippingCategory = category;
+            StorageManager.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    if (mEquippingModel == EquippingModel.CATEGORY) {
+                        unequipOthersInCategory(equippingCategory);
+                    } else if (mEquippingModel == EquippingModel.GLOBAL) {
+                        for(EquippableVG good : StoreInfo.getEquippableGoods()) {
+                            if (good != EquippableVG.this) {
+                                good.unequip();
+                            }
+                        }
                     }
-                }
-            }
 
-            StorageManager.getVirtualGoodsStorage().equip(this);
+                    StorageManager.getVirtualGoodsStorage().equip(EquippableVG.this);
+                }
+            });
         }
         else {
             throw new NotEnoughGoodsException(getItemId());
@@ -168,6 +162,24 @@ public class EquippableVG extends LifetimeVG{
         StorageManager.getVirtualGoodsStorage().unequip(this);
     }
 
+    private void unequipOthersInCategory(VirtualCategory category) {
+        for(String goodItemId : category.getGoodsItemIds()) {
+            EquippableVG equippableVG = null;
+            try {
+                equippableVG = (EquippableVG) StoreInfo.getVirtualItem(goodItemId);
+            } catch (VirtualItemNotFoundException e) {
+                StoreUtils.LogError(TAG, "On equip, couldn't find one of the itemIds in the category. Continuing to the next one. itemId: " + goodItemId);
+                continue;
+            } catch (ClassCastException ex) {
+                StoreUtils.LogDebug(TAG, "On equip, an error occurred. It's a debug message b/c the VirtualGood may just not be an EquippableVG. itemId: " + goodItemId);
+                continue;
+            }
+            if (equippableVG != this) {
+                equippableVG.unequip();
+            }
+        }
+    }
+
     /**
      * EquippingModel is the way EquippableVG is equipped.
      * LOCAL    - The current EquippableVG's equipping status doesn't affect any other EquippableVG.
@@ -60,18 +60,34 @@ public class PurchaseWithVirtualItem extends PurchaseType {
 
         BusProvider.getInstance().post(new ItemPurchaseStartedEvent(getAssociatedItem()));
 
-        VirtualItemStorage storage = StorageManager.getVirtualItemStorage(item);
+        final VirtualItemStorage storage = StorageManager.getVirtualItemStorage(item);
 
         assert storage != null;
-        int balance = storage.getBalance(item);
-        if (balance < mAmount){
-            throw new InsufficientFundsException(mTargetItemId);
-        }
 
-        storage.remove(item, mAmount);
+        // the balance is checked and the price is paid under the target item's lock, and paying and getting
+        // the item are committed together.
+        final VirtualItem targetItem = item;
+        final boolean[] insufficientFunds = new boolean[1];
+        VirtualItemStorage.runInTransactionLocked(targetItem, new Runnable() {
+            @Override
+            public void run() {
+                if (storage.getBalance(targetItem) < mAmount) {
+                    insufficientFunds[0] = true;
+                    return;
+                }
+
+                storage.remove(targetItem, mAmount);
+
+                getAssociatedItem().give(1);
 
-        getAssociatedItem().give(1);
-        BusProvider.getInstance().post(new ItemPurchasedEvent(getAssociatedItem()));
+                // posted only if the transaction is committed (see StorageManager.runInTransaction()).
+                BusProvider.getInstance().post(new ItemPurchasedEvent(getAssociatedItem()));
+            }
+        });
+
+        if (insufficientFunds[0]) {
+            throw new InsufficientFundsException(mTargetItemId);
+        }
     }
 
     public String getTargetItemId() {
@@ -0,0 +1,128 @@
+package com.soomla.store.data;
+
+import com.soomla.store.domain.NonConsumableItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Times reading a catalog of 100, 1,000 and 10,000 items from its stored form: the catalog JSON the older
+ * versions saved (parsed into a tree, then every item's JSON constructor) against the binary snapshot.
+ * Both are followed by indexing the catalog. The stored value's decryption is the same for both and is left out.
+ */
+// in the data package since CatalogSnapshot and Catalog are package-private.
+@RunWith(RobolectricTestRunner.class)
+public class CatalogLoadBenchmarkTest {
+
+    @Test
+    public void benchmarkCatalogLoad() throws Exception {
+        for (int items : new int[] { 100, 1000, 10000 }) {
+            VirtualCurrency currency = new VirtualCurrency("Coins", "", "coins");
+            List<VirtualGood> goods = new ArrayList<VirtualGood>();
+            for (int i = 1; i < items; i++) {
+                goods.add(new SingleUseVG("Good " + i, "The good number " + i, "good_" + i,
+                        new PurchaseWithVirtualItem("coins", i)));
+            }
+            List<VirtualCurrency> currencies = Collections.singletonList(currency);
+
+            final String json = toJSON(currencies, goods);
+            final byte[] snapshot = new CatalogSnapshot(currencies, NO_PACKS, goods, NO_CATEGORIES,
+                    NO_NON_CONSUMABLES).toBytes();
+
+            long jsonNanos = time(new Load() {
+                @Override
+                public Catalog load() throws Exception {
+                    JSONObject catalog = new JSONObject(json);
+                    List<VirtualCurrency> currencies = new ArrayList<VirtualCurrency>();
+                    JSONArray jsonCurrencies = catalog.getJSONArray(JSONConsts.STORE_CURRENCIES);
+                    for (int i = 0; i < jsonCurrencies.length(); i++) {
+                        currencies.add(new VirtualCurrency(jsonCurrencies.getJSONObject(i)));
+                    }
+                    List<VirtualGood> goods = new ArrayList<VirtualGood>();
+                    JSONArray jsonGoods = catalog.getJSONObject(JSONConsts.STORE_GOODS)
+                            .getJSONArray(JSONConsts.STORE_GOODS_SU);
+                    for (int i = 0; i < jsonGoods.length(); i++) {
+                        goods.add(new SingleUseVG(jsonGoods.getJSONObject(i)));
+                    }
+                    return new Catalog(1, currencies, NO_PACKS, goods, NO_CATEGORIES, NO_NON_CONSUMABLES);
+                }
+            });
+
+            long snapshotNanos = time(new Load() {
+                @Override
+                public Catalog load() throws Exception {
+                    CatalogSnapshot read = CatalogSnapshot.fromBytes(snapshot);
+                    return new Catalog(1, read.currencies, read.currencyPacks, read.goods, read.categories,
+                            read.nonConsumables);
+                }
+            });
+
+            System.out.println(String.format("catalog load, %5d items: json %8.3f ms (%7d bytes), " +
+                    "snapshot %8.3f ms (%7d bytes)", items, jsonNanos / 1e6, json.length(),
+                    snapshotNanos / 1e6, snapshot.length));
+        }
+    }
+
+    private interface Load {
+        Catalog load() throws Exception;
+    }
+
+    /**
+     * @return the best time (in nanoseconds) of a few loads, after warming up.
+     */
+    private static long time(Load load) throws Exception {
+        int count = -1;
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            count = load.load().getItemCount();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            Catalog catalog = load.load();
+            best = Math.min(best, System.nanoTime() - start);
+            assertThat(catalog.getItemCount(), equalTo(count));
+        }
+        return best;
+    }
+
+    private static String toJSON(List<VirtualCurrency> currencies, List<VirtualGood> goods) throws Exception {
+        JSONArray jsonCurrencies = new JSONArray();
+        for (VirtualCurrency currency : currencies) {
+            jsonCurrencies.put(currency.toJSONObject());
+        }
+        JSONArray singleUse = new JSONArray();
+        for (VirtualGood good : goods) {
+            singleUse.put(good.toJSONObject());
+        }
+
+        JSONObject jsonGoods = new JSONObject();
+        jsonGoods.put(JSONConsts.STORE_GOODS_SU, singleUse);
+        JSONObject catalog = new JSONObject();
+        catalog.put(JSONConsts.STORE_CURRENCIES, jsonCurrencies);
+        catalog.put(JSONConsts.STORE_GOODS, jsonGoods);
+        return catalog.toString();
+    }
+
+    private static final List<VirtualCurrencyPack> NO_PACKS = Collections.emptyList();
+    private static final List<VirtualCategory> NO_CATEGORIES = Collections.emptyList();
+    private static final List<NonConsumableItem> NO_NON_CONSUMABLES = Collections.emptyList();
+
+    private static final int WARM_UP_RUNS = 5;
+    private static final int TIMED_RUNS   = 10;
+}
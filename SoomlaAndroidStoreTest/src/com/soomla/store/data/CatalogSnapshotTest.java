@@ -0,0 +1,108 @@
+package com.soomla.store.data;
+
+import com.soomla.store.domain.NonConsumableItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.test.MuffinRushAssets;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+// in the data package since CatalogSnapshot is package-private.
+@RunWith(RobolectricTestRunner.class)
+public class CatalogSnapshotTest {
+
+    @Test
+    public void shouldReadBackTheCatalogItWrote() throws Exception {
+        MuffinRushAssets assets = new MuffinRushAssets();
+        CatalogSnapshot snapshot = new CatalogSnapshot(Arrays.asList(assets.getCurrencies()),
+                Arrays.asList(assets.getCurrencyPacks()),
+                Arrays.asList(assets.getGoods()),
+                Arrays.asList(assets.getCategories()),
+                Arrays.asList(assets.getNonConsumableItems()));
+
+        CatalogSnapshot read = CatalogSnapshot.fromBytes(snapshot.toBytes());
+
+        assertThat(currenciesJSON(read.currencies), equalTo(currenciesJSON(snapshot.currencies)));
+        assertThat(packsJSON(read.currencyPacks), equalTo(packsJSON(snapshot.currencyPacks)));
+        assertThat(goodsJSON(read.goods), equalTo(goodsJSON(snapshot.goods)));
+        assertThat(categoriesJSON(read.categories), equalTo(categoriesJSON(snapshot.categories)));
+        assertThat(nonConsumablesJSON(read.nonConsumables), equalTo(nonConsumablesJSON(snapshot.nonConsumables)));
+
+        // the kinds of goods are kept too.
+        for (int i = 0; i < snapshot.goods.size(); i++) {
+            assertThat(read.goods.get(i).getClass().getName(),
+                    equalTo(snapshot.goods.get(i).getClass().getName()));
+        }
+    }
+
+    @Test
+    public void shouldRejectACorruptCount() throws Exception {
+        MuffinRushAssets assets = new MuffinRushAssets();
+        byte[] bytes = new CatalogSnapshot(Arrays.asList(assets.getCurrencies()),
+                Arrays.asList(assets.getCurrencyPacks()),
+                Arrays.asList(assets.getGoods()),
+                Arrays.asList(assets.getCategories()),
+                Arrays.asList(assets.getNonConsumableItems())).toBytes();
+
+        // the currencies count follows the magic (int) and the format version (short).
+        bytes[6] = (byte) 0x7f;
+        try {
+            CatalogSnapshot.fromBytes(bytes);
+            fail("A corrupt count was read");
+        } catch (IOException e) {
+            // expected: StoreInfo falls back to the assets.
+        }
+    }
+
+    private static List<String> currenciesJSON(List<VirtualCurrency> currencies) {
+        List<String> json = new ArrayList<String>();
+        for (VirtualCurrency currency : currencies) {
+            json.add(currency.toJSONObject().toString());
+        }
+        return json;
+    }
+
+    private static List<String> packsJSON(List<VirtualCurrencyPack> packs) {
+        List<String> json = new ArrayList<String>();
+        for (VirtualCurrencyPack pack : packs) {
+            json.add(pack.toJSONObject().toString());
+        }
+        return json;
+    }
+
+    private static List<String> goodsJSON(List<VirtualGood> goods) {
+        List<String> json = new ArrayList<String>();
+        for (VirtualGood good : goods) {
+            json.add(good.toJSONObject().toString());
+        }
+        return json;
+    }
+
+    private static List<String> categoriesJSON(List<VirtualCategory> categories) {
+        List<String> json = new ArrayList<String>();
+        for (VirtualCategory category : categories) {
+            json.add(category.toJSONObject().toString());
+        }
+        return json;
+    }
+
+    private static List<String> nonConsumablesJSON(List<NonConsumableItem> nonConsumables) {
+        List<String> json = new ArrayList<String>();
+        for (NonConsumableItem nonConsumable : nonConsumables) {
+            json.add(nonConsumable.toJSONObject().toString());
+        }
+        return json;
+    }
+}
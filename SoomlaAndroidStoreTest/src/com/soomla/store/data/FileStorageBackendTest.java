@@ -0,0 +1,45 @@
+package com.soomla.store.data;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileStorageBackendTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("soomla-file", ".db");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void shouldDeleteTheKeyWhenANullIsPut() throws Exception {
+        FileStorageBackend backend = new FileStorageBackend(mFile);
+        backend.put("balance", new byte[] { 1 });
+        backend.put("equipped", new byte[0]);
+        backend.put("balance", null);
+        assertThat(backend.get("balance"), nullValue());
+        backend.close();
+
+        backend = new FileStorageBackend(mFile);
+        assertThat(backend.get("balance"), nullValue());
+        assertThat(backend.scan().size(), equalTo(1));
+        backend.close();
+    }
+
+    private File mFile;
+}
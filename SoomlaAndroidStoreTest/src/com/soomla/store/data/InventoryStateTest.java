@@ -0,0 +1,64 @@
+package com.soomla.store.data;
+
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.domain.NonConsumableItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+// in the data package since InventoryState and Catalog are package-private.
+@RunWith(RobolectricTestRunner.class)
+public class InventoryStateTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // ignored if another test opened the database already.
+        StorageManager.setStorageBackend(new MemoryStorageBackend());
+
+        String suffix = "_" + System.nanoTime();
+        mCoins = new VirtualCurrency("Coins", "", "coins" + suffix);
+        mGems = new VirtualCurrency("Gems", "", "gems" + suffix);
+        StorageManager.getVirtualCurrencyStorage().setBalance(mCoins, 7);
+        StorageManager.getVirtualCurrencyStorage().setBalance(mGems, 3);
+    }
+
+    @Test
+    public void shouldKeepTheArraysOfTheCatalogTheOrdinalsCameFrom() {
+        Catalog coinsFirst = catalog(1, mCoins, mGems);
+        Catalog gemsFirst = catalog(2, mGems, mCoins);
+
+        assertThat(InventoryState.getBalance(coinsFirst, coinsFirst.ordinalOf(mCoins.getItemId())), equalTo(7));
+
+        // the same ordinal is another item in the new catalog, the arrays are filled again for it.
+        assertThat(InventoryState.getBalance(gemsFirst, 0), equalTo(3));
+        assertThat(InventoryState.getBalance(gemsFirst, gemsFirst.ordinalOf(mCoins.getItemId())), equalTo(7));
+
+        // a write committed for the older catalog isn't put in the arrays of the new one, it's read again.
+        StorageManager.getVirtualCurrencyStorage().setBalance(mCoins, 8);
+        InventoryState.setBalance(coinsFirst, 0, 8);
+        assertThat(InventoryState.getBalance(gemsFirst, 1), equalTo(8));
+        assertThat(InventoryState.getBalance(gemsFirst, 0), equalTo(3));
+    }
+
+    private static Catalog catalog(int generation, VirtualCurrency... currencies) {
+        return new Catalog(generation, Arrays.asList(currencies), Collections.<VirtualCurrencyPack>emptyList(),
+                Collections.<VirtualGood>emptyList(), Collections.<VirtualCategory>emptyList(),
+                Collections.<NonConsumableItem>emptyList());
+    }
+
+    private VirtualCurrency mCoins;
+    private VirtualCurrency mGems;
+}
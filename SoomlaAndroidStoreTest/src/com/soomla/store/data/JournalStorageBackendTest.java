@@ -0,0 +1,83 @@
+package com.soomla.store.data;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class JournalStorageBackendTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("soomla-journal", ".log");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void shouldDropATornRecordOnReplay() throws Exception {
+        JournalStorageBackend backend = new JournalStorageBackend(mFile);
+        backend.put("balance", new byte[] { 1 });
+        HashMap<String, byte[]> batch = new HashMap<String, byte[]>();
+        batch.put("balance", new byte[] { 2 });
+        batch.put("equipped", new byte[0]);
+        backend.batch(batch);
+        backend.close();
+
+        // a crash in the middle of the batch's record: its payload doesn't match its checksum anymore.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        long lastRecord = lastRecordOffset(file);
+        file.seek(lastRecord + RECORD_HEADER_SIZE);
+        file.write(file.read() ^ 0xff);
+        file.close();
+
+        backend = new JournalStorageBackend(mFile);
+        // the whole batch is dropped, the record before it is kept.
+        assertThat(backend.get("balance")[0], equalTo((byte) 1));
+        assertThat(backend.get("equipped"), nullValue());
+
+        // new records replace the torn one.
+        backend.put("balance", new byte[] { 3 });
+        backend.close();
+
+        backend = new JournalStorageBackend(mFile);
+        assertThat(backend.get("balance")[0], equalTo((byte) 3));
+        assertThat(backend.scan().size(), equalTo(1));
+        backend.close();
+    }
+
+    private static long lastRecordOffset(RandomAccessFile file) throws Exception {
+        long pos = HEADER_SIZE;
+        long last = -1;
+        while (pos + RECORD_HEADER_SIZE <= file.length()) {
+            file.seek(pos);
+            int length = file.readInt();
+            if (length == 0) {
+                break;
+            }
+            last = pos;
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        return last;
+    }
+
+    // see the layout in JournalStorageBackend.
+    private static final int HEADER_SIZE        = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private File mFile;
+}
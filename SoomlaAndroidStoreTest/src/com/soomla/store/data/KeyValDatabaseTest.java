@@ -0,0 +1,61 @@
+package com.soomla.store.data;
+
+import com.soomla.billing.util.AESObfuscator;
+import com.soomla.store.SoomlaApp;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+// in the data package since KeyValDatabase.convertV1Value() is package-private.
+@RunWith(RobolectricTestRunner.class)
+public class KeyValDatabaseTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        mObfuscator = StorageManager.getAESObfuscator();
+    }
+
+    @Test
+    public void shouldConvertV1BalancesToBinaryInts() throws Exception {
+        String key = mObfuscator.obfuscateString(KeyValDatabase.keyCurrencyBalance("currency_muffin"));
+
+        byte[] val = KeyValDatabase.convertV1Value(key, mObfuscator.obfuscateInt(9775));
+
+        assertThat(mObfuscator.unobfuscateBytesToInt(val), equalTo(9775));
+    }
+
+    @Test
+    public void shouldConvertOtherV1ValuesToBinaryStrings() throws Exception {
+        String key = mObfuscator.obfuscateString(KeyValDatabase.keyGoodUpgrade("muffincake"));
+
+        byte[] val = KeyValDatabase.convertV1Value(key, mObfuscator.obfuscateString("muffincake_upgrade1"));
+
+        assertThat(mObfuscator.unobfuscateBytesToString(val), equalTo("muffincake_upgrade1"));
+    }
+
+    @Test
+    public void shouldKeepV1FlagsEmpty() throws Exception {
+        String key = mObfuscator.obfuscateString(KeyValDatabase.keyGoodEquipped("jerry"));
+
+        assertThat(KeyValDatabase.convertV1Value(key, "").length, equalTo(0));
+        assertThat(KeyValDatabase.convertV1Value(key, null), nullValue());
+    }
+
+    @Test
+    public void shouldKeepUnreadableV1ValuesAsTheyAre() throws Exception {
+        String key = mObfuscator.obfuscateString(KeyValDatabase.keyCurrencyBalance("currency_muffin"));
+
+        byte[] val = KeyValDatabase.convertV1Value(key, "not obfuscated");
+
+        assertThat(new String(val, "UTF-8"), equalTo("not obfuscated"));
+    }
+
+    private AESObfuscator mObfuscator;
+}
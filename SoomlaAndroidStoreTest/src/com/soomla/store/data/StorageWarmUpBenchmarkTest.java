@@ -0,0 +1,97 @@
+package com.soomla.store.data;
+
+import android.content.Context;
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.StoreConfig;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+
+/**
+ * Times the first storage access of the store (deriving the keys, reading the store's preferences, opening and
+ * preloading the database) as the UI thread sees it: without a warm-up, right after the warm-up was started (the
+ * thread waits for it) and once the warm-up is done (the time between the app's onCreate and the store's first
+ * frame). StorageManager is reset to its cold state (by reflection) before every run.
+ */
+// in the data package since the state that's reset is package-private.
+@RunWith(RobolectricTestRunner.class)
+public class StorageWarmUpBenchmarkTest {
+
+    @Test
+    public void benchmarkFirstAccess() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        StorageManager.setStorageBackend(new MemoryStorageBackend());
+
+        long cold = Long.MAX_VALUE;
+        long waiting = Long.MAX_VALUE;
+        long warm = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            reset();
+            cold = Math.min(cold, timeFirstAccess());
+
+            reset();
+            StorageManager.warmUp();
+            waiting = Math.min(waiting, timeFirstAccess());
+
+            reset();
+            StorageManager.warmUp();
+            warmUpThread().join();
+            warm = Math.min(warm, timeFirstAccess());
+        }
+
+        System.out.println(String.format("first storage access: no warm-up %.2f ms, warm-up running %.2f ms, " +
+                "warm-up done %.3f ms", cold / 1e6, waiting / 1e6, warm / 1e6));
+    }
+
+    /**
+     * @return the time (in nanoseconds) of what the store does on its first access, on the calling thread.
+     */
+    private static long timeFirstAccess() {
+        long start = System.nanoTime();
+        StorageManager.getAESObfuscator();
+        new ObscuredSharedPreferences(SoomlaApp.getAppContext()
+                .getSharedPreferences(StoreConfig.PREFS_NAME, Context.MODE_PRIVATE)).getString("SA_VER_NEW", null);
+        StorageManager.preload();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Drops the derived keys and the open database (the storage backend, and what's in it, is kept).
+     */
+    private static void reset() throws Exception {
+        Thread warmUp = warmUpThread();
+        if (warmUp != null) {
+            warmUp.join();
+        }
+
+        set(StorageManager.class, "mObfuscator", null);
+        set(StorageManager.class, "mKvDatabase", null);
+        set(StorageManager.class, "mWarmUpThread", null);
+        set(ObscuredSharedPreferences.class, "mKey", null);
+        // the preferences' ciphers are kept per thread and built from the key.
+        ((ThreadLocal<?>) get(ObscuredSharedPreferences.class, "mEncryptor")).remove();
+        ((ThreadLocal<?>) get(ObscuredSharedPreferences.class, "mDecryptor")).remove();
+        ((java.util.Map<?, ?>) get(ObscuredSharedPreferences.class, "mCaches")).clear();
+    }
+
+    private static Thread warmUpThread() throws Exception {
+        return (Thread) get(StorageManager.class, "mWarmUpThread");
+    }
+
+    private static Object get(Class<?> cls, String name) throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(null);
+    }
+
+    private static void set(Class<?> cls, String name, Object value) throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    private static final int RUNS = 5;
+}
@@ -0,0 +1,111 @@
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.store.domain.NonConsumableItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Times looking up the level of a good's last upgrade in chains of 5, 20 and 100 upgrades: through the index
+ * built when the catalog loads, and by scanning for the first upgrade and walking the chain item by item, as
+ * StoreInventory.getGoodUpgradeLevel() used to.
+ */
+// in the data package since Catalog is package-private.
+@RunWith(RobolectricTestRunner.class)
+public class UpgradeLevelBenchmarkTest {
+
+    @Test
+    public void benchmarkUpgradeLevel() throws Exception {
+        for (int levels : new int[] { 5, 20, 100 }) {
+            final Catalog catalog = catalog(levels);
+            final UpgradeVG last = catalog.getGoodUpgradeChain("good")[levels - 1];
+            final int expected = levels;
+
+            long indexNanos = time(new Op() {
+                @Override
+                public void run() {
+                    assertThat(catalog.getUpgradeLevel(last), equalTo(expected));
+                }
+            });
+
+            long walkNanos = time(new Op() {
+                @Override
+                public void run() {
+                    UpgradeVG upgrade = null;
+                    for (UpgradeVG upgradeVG : catalog.getGoodUpgrades("good")) {
+                        if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
+                            upgrade = upgradeVG;
+                            break;
+                        }
+                    }
+                    int level = 1;
+                    while (!upgrade.equals(last)) {
+                        upgrade = (UpgradeVG) catalog.itemAt(catalog.ordinalOf(upgrade.getNextItemId()));
+                        level++;
+                    }
+                    assertThat(level, equalTo(expected));
+                }
+            });
+
+            System.out.println(String.format("upgrade level, chain of %3d: index %8.1f ns, chain walk %8.1f ns",
+                    levels, indexNanos / (double) OPS, walkNanos / (double) OPS));
+        }
+    }
+
+    /**
+     * @return a catalog with a good that has the given number of upgrades, listed from the last to the first
+     * (so finding the first upgrade scans all of them).
+     */
+    private static Catalog catalog(int levels) {
+        List<VirtualGood> goods = new ArrayList<VirtualGood>();
+        goods.add(new LifetimeVG("Good", "", "good", new PurchaseWithVirtualItem("coins", 1)));
+        for (int i = levels; i >= 1; i--) {
+            goods.add(new UpgradeVG("good", i > 1 ? "good_up" + (i - 1) : "", i < levels ? "good_up" + (i + 1) : "",
+                    "Upgrade " + i, "", "good_up" + i, new PurchaseWithVirtualItem("coins", i)));
+        }
+        return new Catalog(1, Collections.singletonList(new VirtualCurrency("Coins", "", "coins")),
+                Collections.<VirtualCurrencyPack>emptyList(), goods, Collections.<VirtualCategory>emptyList(),
+                Collections.<NonConsumableItem>emptyList());
+    }
+
+    private interface Op {
+        void run();
+    }
+
+    /**
+     * @return the best time (in nanoseconds) of OPS ops over a few rounds, after warming up.
+     */
+    private static long time(Op op) {
+        for (int i = 0; i < OPS; i++) {
+            op.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < TIMED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < OPS; i++) {
+                op.run();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static final int OPS          = 100000;
+    private static final int TIMED_ROUNDS = 5;
+}
@@ -0,0 +1,103 @@
+package com.soomla.test;
+
+import com.soomla.billing.util.AESObfuscator;
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.data.StorageManager;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Times the obfuscator's throughput (an obfuscate + unobfuscate of a balance) with 1, 2 and 4 threads, calling it
+ * directly (every thread has its own ciphers) and through one shared monitor (as when its methods were
+ * synchronized). The gain of the direct calls grows with the cores the threads can run on.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AESObfuscatorBenchmarkTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        mObfuscator = StorageManager.getAESObfuscator();
+    }
+
+    @Test
+    public void benchmarkThroughput() throws Exception {
+        final Object monitor = new Object();
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            time(4, null);
+            time(4, monitor);
+        }
+
+        for (int threads : new int[] { 1, 2, 4 }) {
+            long perThreadNanos = Long.MAX_VALUE;
+            long sharedMonitorNanos = Long.MAX_VALUE;
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                perThreadNanos = Math.min(perThreadNanos, time(threads, null));
+                sharedMonitorNanos = Math.min(sharedMonitorNanos, time(threads, monitor));
+            }
+
+            System.out.println(String.format("obfuscator, %d threads: per-thread ciphers %.0f ops/s, " +
+                    "one shared monitor %.0f ops/s (%d cores)", threads, opsPerSecond(threads, perThreadNanos),
+                    opsPerSecond(threads, sharedMonitorNanos), Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    /**
+     * @param monitor the monitor every call is made under, or null for direct calls.
+     * @return the time (in nanoseconds) it took the given number of threads to run OPS ops each.
+     */
+    private long time(int threads, final Object monitor) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS; i++) {
+                            if (monitor == null) {
+                                roundTrip(i);
+                            } else {
+                                synchronized (monitor) {
+                                    roundTrip(i);
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    private void roundTrip(int balance) throws AESObfuscator.ValidationException {
+        assertThat(mObfuscator.unobfuscateBytesToInt(mObfuscator.obfuscateToBytes(balance)), equalTo(balance));
+    }
+
+    private static double opsPerSecond(int threads, long nanos) {
+        return (double) threads * OPS / (nanos / 1e9);
+    }
+
+    private static final int OPS          = 20000;
+    private static final int WARM_UP_RUNS = 5;
+    private static final int TIMED_RUNS   = 3;
+
+    private AESObfuscator mObfuscator;
+}
@@ -0,0 +1,98 @@
+package com.soomla.test;
+
+import com.soomla.billing.util.Base64;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Times Base64 encoding and decoding of the short values the storage layer writes (16 to 64 bytes) and of a
+ * 100 KB catalog blob, through the table-driven path (into a reused buffer) and through the generic
+ * alphabet/decodabet overloads encode() and decode() used to call.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Base64BenchmarkTest {
+
+    @Test
+    public void benchmarkEncodeAndDecode() throws Exception {
+        final byte[] alphabet = table("ALPHABET");
+        final byte[] decodabet = table("DECODABET");
+
+        for (int size : new int[] { 16, 32, 64, 100 * 1024 }) {
+            final byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            final int ops = Math.max(20, OPS_BYTES / size);
+
+            final byte[] encoded = new byte[Base64.encodedLength(size, true)];
+            final byte[] decoded = new byte[Base64.decodedMaxLength(encoded.length)];
+            long fastNanos = time(ops, new Op() {
+                @Override
+                public void run() throws Exception {
+                    int encodedLength = Base64.encode(data, 0, data.length, encoded, 0, false, true);
+                    int decodedLength = Base64.decode(encoded, 0, encodedLength, decoded, 0);
+                    assertThat(decodedLength, equalTo(data.length));
+                }
+            });
+
+            long genericNanos = time(ops, new Op() {
+                @Override
+                public void run() throws Exception {
+                    String encoded = Base64.encode(data, 0, data.length, alphabet, true);
+                    byte[] bytes = encoded.getBytes();
+                    assertThat(Base64.decode(bytes, 0, bytes.length, decodabet).length, equalTo(data.length));
+                }
+            });
+
+            // both paths agree.
+            String encodedString = Base64.encode(data);
+            assertThat(encodedString, equalTo(Base64.encode(data, 0, data.length, alphabet, true)));
+            assertThat(Arrays.equals(Base64.decode(encodedString), data), equalTo(true));
+
+            System.out.println(String.format("base64 encode + decode, %6d bytes: table-driven %10.3f us, " +
+                    "generic %10.3f us", size, fastNanos / 1e3, genericNanos / 1e3));
+        }
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    /**
+     * @return the best mean time (in nanoseconds) of one op over a few rounds, after warming up.
+     */
+    private static long time(int ops, Op op) throws Exception {
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            for (int i = 0; i < ops; i++) {
+                op.run();
+            }
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < TIMED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                op.run();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / ops);
+        }
+        return best;
+    }
+
+    private static byte[] table(String name) throws Exception {
+        Field field = Base64.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (byte[]) field.get(null);
+    }
+
+    // about this many bytes are encoded and decoded per round, whatever the size of one value.
+    private static final int OPS_BYTES      = 4 * 1024 * 1024;
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int TIMED_ROUNDS   = 5;
+}
@@ -0,0 +1,64 @@
+package com.soomla.test;
+
+import com.soomla.billing.Consts;
+import com.soomla.billing.Security;
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.StoreController;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.data.MemoryStorageBackend;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreControllerTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // ignored if another test opened the database already.
+        StorageManager.setStorageBackend(new MemoryStorageBackend());
+        StoreInfo.setStoreAssets(new MuffinRushAssets());
+    }
+
+    @Test
+    public void shouldNotLoseGivesMadeWhileARestoreIsApplied() throws Exception {
+        final String muffins = MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID;
+        int balance = StoreInventory.getVirtualItemBalance(muffins);
+
+        final List<Security.VerifiedPurchase> restore = new ArrayList<Security.VerifiedPurchase>();
+        for (int i = 0; i < RESTORED_ORDERS; i++) {
+            restore.add(new Security.VerifiedPurchase(Consts.PurchaseState.PURCHASED, "notification" + i,
+                    MuffinRushAssets.TENMUFF_PACK_PRODUCT_ID, "order" + i, i, null));
+        }
+
+        // the restore is applied in one transaction on the billing thread while the game thread keeps giving.
+        Thread billing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StoreController.getInstance().onPurchaseStateChanges(restore);
+            }
+        });
+        billing.start();
+        for (int i = 0; i < GAME_GIVES; i++) {
+            StoreInventory.giveVirtualItem(muffins, 1);
+        }
+        billing.join();
+
+        assertThat(StoreInventory.getVirtualItemBalance(muffins),
+                equalTo(balance + RESTORED_ORDERS * 10 + GAME_GIVES));
+    }
+
+    private static final int RESTORED_ORDERS = 50;
+    private static final int GAME_GIVES       = 500;
+}
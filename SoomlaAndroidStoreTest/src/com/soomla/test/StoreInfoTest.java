@@ -0,0 +1,56 @@
+package com.soomla.test;
+
+import com.soomla.billing.util.AESObfuscator;
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.data.KeyValDatabase;
+import com.soomla.store.data.MemoryStorageBackend;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.soomla.store.domain.VirtualItem;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreInfoTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // ignored if another test opened the database already.
+        StorageManager.setStorageBackend(new MemoryStorageBackend());
+        StoreInfo.setStoreAssets(new MuffinRushAssets());
+    }
+
+    @Test
+    public void shouldReloadTheCatalogOnlyWhenItsStampChanged() throws Exception {
+        VirtualItem muffins = StoreInfo.getVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID);
+
+        // unchanged: the items are kept.
+        assertThat(StoreInfo.initializeFromDB(), equalTo(true));
+        assertThat(StoreInfo.getVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID), sameInstance(muffins));
+
+        // without its stamp the catalog is read again, and the stamp is saved again.
+        AESObfuscator obfuscator = StorageManager.getAESObfuscator();
+        KeyValDatabase database = StorageManager.getDatabase();
+        String stampKey = obfuscator.obfuscateKey(KeyValDatabase.keyMetaStoreInfoStamp());
+        database.deleteKeyVal(stampKey);
+
+        assertThat(StoreInfo.initializeFromDB(), equalTo(true));
+        VirtualItem reloaded = StoreInfo.getVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID);
+        assertThat(reloaded, not(sameInstance(muffins)));
+        assertThat(reloaded.getItemId(), equalTo(muffins.getItemId()));
+        assertThat(database.getKeyVal(stampKey), notNullValue());
+
+        assertThat(StoreInfo.initializeFromDB(), equalTo(true));
+        assertThat(StoreInfo.getVirtualItem(MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID), sameInstance(reloaded));
+    }
+}
@@ -0,0 +1,140 @@
+package com.soomla.test;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.Settings;
+import com.soomla.billing.Security;
+import com.soomla.billing.util.Base64;
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.StoreConfig;
+import com.soomla.store.StoreController;
+import com.soomla.store.StoreInventory;
+import com.soomla.store.StoreUtils;
+import com.soomla.store.data.MemoryStorageBackend;
+import com.soomla.store.data.ObscuredSharedPreferences;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreInfo;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import com.xtremelabs.robolectric.internal.Implementation;
+import com.xtremelabs.robolectric.internal.Implements;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StoreUtilsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // ignored if another test opened the database already.
+        StorageManager.setStorageBackend(new MemoryStorageBackend());
+        StoreInfo.setStoreAssets(new MuffinRushAssets());
+
+        // the shadow returns the id the store already uses so the keys derived again below don't change.
+        CountingShadowSecure.mAndroidId = StoreUtils.deviceId();
+        Robolectric.bindShadowClass(CountingShadowSecure.class);
+        CountingShadowSecure.mGetStringCalls = 0;
+
+        // another test may have fetched it (and derived the keys from it) already.
+        set(StoreUtils.class, "mDeviceId", null);
+    }
+
+    @Test
+    public void shouldFetchTheDeviceIdOnce() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertThat(StoreUtils.deviceId(), equalTo(CountingShadowSecure.mAndroidId));
+        }
+        assertThat(CountingShadowSecure.mGetStringCalls, equalTo(1));
+    }
+
+    @Test
+    public void shouldFetchTheDeviceIdOnceThroughAPurchase() throws Exception {
+        // every key that's derived from the device id is derived again.
+        set(StorageManager.class, "mObfuscator", null);
+        set(ObscuredSharedPreferences.class, "mKey", null);
+        ((ThreadLocal<?>) get(ObscuredSharedPreferences.class, "mEncryptor")).remove();
+        ((ThreadLocal<?>) get(ObscuredSharedPreferences.class, "mDecryptor")).remove();
+        ((Map<?, ?>) get(ObscuredSharedPreferences.class, "mCaches")).clear();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        // what StoreController.initialize() saves (encrypted)...
+        SharedPreferences prefs = new ObscuredSharedPreferences(SoomlaApp.getAppContext()
+                .getSharedPreferences(StoreConfig.PREFS_NAME, Context.MODE_PRIVATE));
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.putString(StoreConfig.PUBLIC_KEY, Base64.encode(keyPair.getPublic().getEncoded()));
+        edit.commit();
+        ((Map<?, ?>) get(ObscuredSharedPreferences.class, "mCaches")).clear();
+
+        // ... and a purchase Google Play signed with the matching private key.
+        long nonce = Security.generateNonce();
+        JSONObject order = new JSONObject();
+        order.put("purchaseState", 0);
+        order.put("productId", MuffinRushAssets.TENMUFF_PACK_PRODUCT_ID);
+        order.put("packageName", SoomlaApp.getAppContext().getPackageName());
+        order.put("purchaseTime", System.currentTimeMillis());
+        order.put("orderId", "order" + nonce);
+        order.put("notificationId", "notification" + nonce);
+        JSONObject signedData = new JSONObject();
+        signedData.put("nonce", nonce);
+        signedData.put("orders", new JSONArray().put(order));
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(signedData.toString().getBytes());
+        String signature = Base64.encode(signer.sign());
+
+        String muffins = MuffinRushAssets.MUFFIN_CURRENCY_ITEM_ID;
+        int balance = StoreInventory.getVirtualItemBalance(muffins);
+
+        // verifying reads the public key (decrypted) and applying the purchase writes the balance (obfuscated).
+        StoreController.getInstance().setTestMode(false);
+        List<Security.VerifiedPurchase> purchases = Security.verifyPurchase(signedData.toString(), signature);
+        assertThat(purchases.size(), equalTo(1));
+        assertThat(StoreController.getInstance().onPurchaseStateChanges(purchases), equalTo(true));
+
+        assertThat(StoreInventory.getVirtualItemBalance(muffins), equalTo(balance + 10));
+        assertThat(CountingShadowSecure.mGetStringCalls, equalTo(1));
+    }
+
+    private static Object get(Class<?> cls, String name) throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(null);
+    }
+
+    private static void set(Class<?> cls, String name, Object value) throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    @Implements(Settings.Secure.class)
+    public static class CountingShadowSecure {
+
+        @Implementation
+        public static String getString(ContentResolver resolver, String name) {
+            mGetStringCalls++;
+            return mAndroidId;
+        }
+
+        static String mAndroidId;
+        static int mGetStringCalls = 0;
+    }
+}
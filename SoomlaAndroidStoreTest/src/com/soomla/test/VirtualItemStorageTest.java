@@ -0,0 +1,99 @@
+package com.soomla.test;
+
+import com.soomla.store.SoomlaApp;
+import com.soomla.store.data.MemoryStorageBackend;
+import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.VirtualCurrencyStorage;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class VirtualItemStorageTest {
+
+    @Before
+    public void setUp() {
+        SoomlaApp.setExternalContext(Robolectric.getShadowApplication().getApplicationContext());
+        // ignored if another test opened the database already.
+        StorageManager.setStorageBackend(new MemoryStorageBackend());
+
+        // not in the catalog, so its balance is read from the database.
+        mCoins = new VirtualCurrency("Test coins", "", "test_coins_" + System.nanoTime());
+        mStorage = StorageManager.getVirtualCurrencyStorage();
+        mStorage.setBalance(mCoins, 100);
+    }
+
+    @Test
+    public void shouldNotLoseAnUpdateMadeWhileATransactionIsOpen() throws Exception {
+        final CountDownLatch added = new CountDownLatch(1);
+        final CountDownLatch gameStarted = new CountDownLatch(1);
+
+        // the billing thread applies a purchase in a transaction...
+        Thread billing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StorageManager.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        mStorage.add(mCoins, 500);
+                        added.countDown();
+                        try {
+                            gameStarted.await();
+                            // gives the game thread's update time to (wrongly) go through.
+                            Thread.sleep(200);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+        });
+        billing.start();
+        added.await();
+
+        // ...while the game thread gives a coin. it must wait for the purchase to be committed.
+        gameStarted.countDown();
+        mStorage.add(mCoins, 1);
+        billing.join();
+
+        assertThat(mStorage.getBalance(mCoins), equalTo(601));
+    }
+
+    @Test
+    public void shouldReleaseTheLocksOfARolledBackTransaction() throws Exception {
+        try {
+            StorageManager.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    mStorage.add(mCoins, 500);
+                    throw new IllegalStateException("rolled back");
+                }
+            });
+        } catch (IllegalStateException e) {
+            // expected.
+        }
+
+        Thread game = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mStorage.add(mCoins, 1);
+            }
+        });
+        game.start();
+        game.join(5000);
+
+        assertThat(game.isAlive(), equalTo(false));
+        assertThat(mStorage.getBalance(mCoins), equalTo(101));
+    }
+
+    private VirtualCurrency mCoins;
+    private VirtualCurrencyStorage mStorage;
+}